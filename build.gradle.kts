@@ -37,6 +37,8 @@ plugins {
     // id("org.jetbrains.qodana") version "0.1.13"
     // ktlint linter - read more: https://github.com/JLLeitschuh/ktlint-gradle
     id("org.jlleitschuh.gradle.ktlint") version "10.3.0"
+    // JMH benchmarks in src/jmh - read more: https://github.com/melix/jmh-gradle-plugin
+    id("me.champeau.jmh") version "0.6.6"
 }
 
 val artifactTypeAttribute = Attribute.of("artifactType", String::class.java)
@@ -143,6 +145,90 @@ intellij {
     plugins.set(properties("platformPlugins").split(',').map(String::trim).filter(String::isNotEmpty))
 }
 
+// Prebuilt index bundles for library jars, see IndexBundles. `./gradlew buildIndexBundles -PbundleJars=a.jar,b.jar` writes
+// them to build/index-bundles, or to -PbundleDir. The IDE picks them up from -Dclassfileindexer.bundles.dir.
+tasks.register<JavaExec>("buildIndexBundles") {
+    description = "Builds index bundles for library jars."
+    classpath = sourceSets.main.get().runtimeClasspath + sourceSets.main.get().compileClasspath
+    mainClass.set("net.earthcomputer.classfileindexer.IndexBundles")
+    val outputDir = findProperty("bundleDir") as String? ?: buildDir.resolve("index-bundles").path
+    val jars = (findProperty("bundleJars") as String? ?: "").split(',').map(String::trim).filter(String::isNotEmpty)
+    args = listOf(outputDir) + jars
+}
+
+// Synthetic class file corpora for the benchmarks and the latency harness, see CorpusGenerator in src/corpus.
+// `./gradlew generateCorpus` writes build/corpus/corpus-<n>.jar for each of -PcorpusClasses (default 10000,100000,1000000).
+val corpus: SourceSet by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output + sourceSets.main.get().compileClasspath
+    runtimeClasspath += output + compileClasspath
+}
+
+tasks.register<JavaExec>("generateCorpus") {
+    description = "Generates synthetic class file corpora."
+    classpath = corpus.runtimeClasspath
+    mainClass.set("net.earthcomputer.classfileindexer.CorpusGenerator")
+    val classCounts = (findProperty("corpusClasses") as String? ?: "10000,100000,1000000").split(',').map(String::trim)
+    args = listOf(buildDir.resolve("corpus").path) + classCounts
+}
+
+// Helpers shared by the tests and the benchmarks, such as an in-memory stand-in for the index's string enumerator
+val testFixtures: SourceSet by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output + sourceSets.main.get().compileClasspath
+    runtimeClasspath += output + compileClasspath
+}
+
+sourceSets.named("test") {
+    compileClasspath += testFixtures.output
+    runtimeClasspath += testFixtures.output
+}
+
+// Configure JMH benchmarks. They run against the main classes outside of the IDE, so they also need the platform
+// classes the plugin compiles against. Run with `./gradlew jmh`, results are written to build/results/jmh.
+sourceSets.named("jmh") {
+    compileClasspath += sourceSets.main.get().compileClasspath + corpus.output + testFixtures.output
+    runtimeClasspath += sourceSets.main.get().compileClasspath + corpus.output + testFixtures.output
+}
+
+jmh {
+    jmhVersion.set("1.35")
+    profilers.add("gc")
+    resultFormat.set("JSON")
+    // benchmarks write measurements that aren't timings, such as serialized sizes, next to the results
+    jvmArgsAppend.add("-Dbenchmark.resultsDir=${buildDir.resolve("results/jmh")}")
+    jvmArgsAppend.add("-Dbenchmark.corpusDir=${buildDir.resolve("corpus")}")
+    // run a subset with e.g. `./gradlew jmh -PjmhIncludes=IndexingBenchmark`
+    (findProperty("jmhIncludes") as String?)?.let { includes.add(it) }
+}
+
+// Configure the find usages latency harness in src/perfTest. It runs heavy platform tests, so it is kept out of `test` and
+// only runs with `./gradlew perfTest`. -PperfTest.* properties are passed on to the harness as system properties.
+val perfTest: SourceSet by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output + sourceSets.main.get().compileClasspath + corpus.output
+    runtimeClasspath += output + compileClasspath
+}
+
+configurations["perfTestImplementation"].extendsFrom(configurations.testImplementation.get())
+configurations["perfTestRuntimeOnly"].extendsFrom(configurations.testRuntimeOnly.get())
+
+dependencies {
+    testImplementation("junit:junit:4.13.2")
+}
+
+tasks.register<Test>("perfTest") {
+    description = "Measures find usages latency against library jars."
+    group = "verification"
+    testClassesDirs = perfTest.output.classesDirs
+    classpath = perfTest.runtimeClasspath
+    shouldRunAfter(tasks.test)
+    outputs.upToDateWhen { false }
+    systemProperty("perfTest.report", buildDir.resolve("reports/perfTest/find-usages.json").path)
+    for ((key, value) in project.properties) {
+        if (key.startsWith("perfTest.")) {
+            systemProperty(key, value.toString())
+        }
+    }
+}
+
 // Configure Gradle Changelog Plugin - read more: https://github.com/JetBrains/gradle-changelog-plugin
 changelog {
     version.set(properties("pluginVersion"))
@@ -243,6 +329,23 @@ tasks.register<proguard.gradle.ProGuardTask>("proguard") {
         """ class net.earthcomputer.classfileindexer.IIsWriteOverride{*;}
         """.trimIndent()
     )
+    keep(
+        """ class net.earthcomputer.classfileindexer.NavigationCallers{*;}
+        """.trimIndent()
+    )
+    // JMX finds the attributes of the metrics bean by the names of its getters
+    keep(
+        """ class net.earthcomputer.classfileindexer.PluginMetrics${'$'}MetricsMXBean{*;}
+        """.trimIndent()
+    )
+    keep(
+        """ class net.earthcomputer.classfileindexer.PluginMetrics${'$'}MXBeanImpl{*;}
+        """.trimIndent()
+    )
+    keep(
+        """ class net.earthcomputer.classfileindexer.PluginMetrics${'$'}HistogramSnapshot{*;}
+        """.trimIndent()
+    )
 }
 
 tasks {
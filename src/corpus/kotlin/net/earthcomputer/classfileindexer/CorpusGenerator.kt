@@ -0,0 +1,259 @@
+package net.earthcomputer.classfileindexer
+
+import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.ClassWriter
+import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.Handle
+import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.MethodVisitor
+import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.Opcodes
+import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.Type
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.util.SplittableRandom
+import java.util.jar.JarEntry
+import java.util.jar.JarOutputStream
+import java.util.zip.CRC32
+import java.util.zip.ZipEntry
+
+// The shape of a synthetic corpus. Every class corpus/C<i> has fieldCount int fields f<j>, a method m<j>()V for each of
+// methodCount, and a private field reached from a nested class through a synthetic accessor. The methods reference fields,
+// methods and classes of other classes of the corpus, with a hubProbability chance of the target being corpus/C0, so that
+// C0, C0.f0 and C0.m0 are searched for at scale. With subclassProbability, a class extends an earlier class instead of
+// Object, so inheritor searches have something to find.
+data class CorpusSpec(
+    val classCount: Int,
+    val fieldCount: Int = 3,
+    val methodCount: Int = 3,
+    val fieldRefsPerMethod: Int = 4,
+    val methodRefsPerMethod: Int = 4,
+    val classRefsPerMethod: Int = 2,
+    val lambdasPerClass: Int = 1,
+    val accessorsPerClass: Int = 1,
+    val genericSignatures: Boolean = true,
+    val hubProbability: Double = 0.05,
+    val subclassProbability: Double = 0.05,
+    val seed: Long = 0
+)
+
+// Generates class files according to a CorpusSpec with ASM. The output only depends on the spec, so corpora can be
+// regenerated instead of stored, and everything runs offline.
+object CorpusGenerator {
+    const val PACKAGE = "corpus"
+    val HUB_TARGETS = listOf("$PACKAGE.C0", "$PACKAGE.C0#f0", "$PACKAGE.C0#m0")
+
+    private const val SECRET_FIELD = "secret"
+    private val METAFACTORY = Handle(
+        Opcodes.H_INVOKESTATIC,
+        "java/lang/invoke/LambdaMetafactory",
+        "metafactory",
+        "(Ljava/lang/invoke/MethodHandles\$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;" +
+            "Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)" +
+            "Ljava/lang/invoke/CallSite;",
+        false
+    )
+
+    fun className(index: Int) = "$PACKAGE/C$index"
+
+    // Passes the internal name and bytes of every class of the corpus to the consumer, in a stable order
+    fun generate(spec: CorpusSpec, consumer: (String, ByteArray) -> Unit) {
+        for (i in 0 until spec.classCount) {
+            // one random stream per class, so any class can be generated on its own
+            val random = SplittableRandom(spec.seed * 31 + i)
+            consumer(className(i), generateClass(spec, i, random))
+            if (spec.accessorsPerClass > 0) {
+                consumer(className(i) + "\$Inner", generateInnerClass(spec, i))
+            }
+        }
+    }
+
+    // Writes the corpus to a jar. Entries are stored uncompressed, so reading them back costs little next to indexing.
+    fun writeJar(spec: CorpusSpec, jar: Path) {
+        jar.toAbsolutePath().parent?.let { Files.createDirectories(it) }
+        JarOutputStream(Files.newOutputStream(jar).buffered()).use { out ->
+            val crc = CRC32()
+            generate(spec) { name, bytes ->
+                val entry = JarEntry("$name.class")
+                entry.method = ZipEntry.STORED
+                entry.size = bytes.size.toLong()
+                crc.reset()
+                crc.update(bytes)
+                entry.crc = crc.value
+                out.putNextEntry(entry)
+                out.write(bytes)
+                out.closeEntry()
+            }
+        }
+    }
+
+    private fun generateClass(spec: CorpusSpec, index: Int, random: SplittableRandom): ByteArray {
+        val name = className(index)
+        val cw = ClassWriter(ClassWriter.COMPUTE_MAXS)
+        val signature = if (spec.genericSignatures) {
+            "<T:L${randomTarget(spec, index, random)};>Ljava/lang/Object;Ljava/lang/Comparable<L$name;>;"
+        } else {
+            null
+        }
+        val superName = if (index > 0 && random.nextDouble() < spec.subclassProbability) {
+            if (random.nextDouble() < spec.hubProbability) className(0) else className(random.nextInt(index))
+        } else {
+            "java/lang/Object"
+        }
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC or Opcodes.ACC_SUPER, name, signature, superName, arrayOf("java/lang/Comparable"))
+        if (spec.accessorsPerClass > 0) {
+            cw.visitInnerClass("$name\$Inner", name, "Inner", Opcodes.ACC_STATIC)
+        }
+
+        for (j in 0 until spec.fieldCount) {
+            cw.visitField(Opcodes.ACC_PUBLIC or Opcodes.ACC_STATIC, "f$j", "I", null, null).visitEnd()
+        }
+        if (spec.genericSignatures) {
+            val fieldSignature = "Ljava/util/List<L${randomTarget(spec, index, random)};>;"
+            cw.visitField(Opcodes.ACC_PUBLIC, "list", "Ljava/util/List;", fieldSignature, null).visitEnd()
+        }
+        cw.visitField(Opcodes.ACC_PRIVATE, SECRET_FIELD, "I", null, null).visitEnd()
+
+        generateConstructor(cw, superName)
+        for (j in 0 until spec.methodCount) {
+            val mv = cw.visitMethod(Opcodes.ACC_PUBLIC or Opcodes.ACC_STATIC, "m$j", "()V", null, null)
+            mv.visitCode()
+            generateReferences(spec, index, random, mv)
+            mv.visitInsn(Opcodes.RETURN)
+            mv.visitMaxs(0, 0)
+            mv.visitEnd()
+        }
+
+        val compare = cw.visitMethod(Opcodes.ACC_PUBLIC, "compareTo", "(Ljava/lang/Object;)I", null, null)
+        compare.visitCode()
+        compare.visitInsn(Opcodes.ICONST_0)
+        compare.visitInsn(Opcodes.IRETURN)
+        compare.visitMaxs(0, 0)
+        compare.visitEnd()
+
+        if (spec.lambdasPerClass > 0) {
+            val mv = cw.visitMethod(Opcodes.ACC_PUBLIC or Opcodes.ACC_STATIC, "lambdas", "()V", null, null)
+            mv.visitCode()
+            for (k in 0 until spec.lambdasPerClass) {
+                val voidMethod = Type.getMethodType("()V")
+                mv.visitInvokeDynamicInsn(
+                    "run",
+                    "()Ljava/lang/Runnable;",
+                    METAFACTORY,
+                    voidMethod,
+                    Handle(Opcodes.H_INVOKESTATIC, name, "lambda\$lambdas\$$k", "()V", false),
+                    voidMethod
+                )
+                mv.visitInsn(Opcodes.POP)
+            }
+            mv.visitInsn(Opcodes.RETURN)
+            mv.visitMaxs(0, 0)
+            mv.visitEnd()
+            for (k in 0 until spec.lambdasPerClass) {
+                val lambda = cw.visitMethod(
+                    Opcodes.ACC_PRIVATE or Opcodes.ACC_STATIC or Opcodes.ACC_SYNTHETIC,
+                    "lambda\$lambdas\$$k",
+                    "()V",
+                    null,
+                    null
+                )
+                lambda.visitCode()
+                generateReferences(spec, index, random, lambda)
+                lambda.visitInsn(Opcodes.RETURN)
+                lambda.visitMaxs(0, 0)
+                lambda.visitEnd()
+            }
+        }
+
+        // static synthetic accessors of the private field, in the shape javac generates before nest mates
+        for (k in 0 until spec.accessorsPerClass) {
+            val accessor = cw.visitMethod(Opcodes.ACC_STATIC or Opcodes.ACC_SYNTHETIC, accessorName(k), "(L$name;)I", null, null)
+            accessor.visitCode()
+            accessor.visitVarInsn(Opcodes.ALOAD, 0)
+            accessor.visitFieldInsn(Opcodes.GETFIELD, name, SECRET_FIELD, "I")
+            accessor.visitInsn(Opcodes.IRETURN)
+            accessor.visitMaxs(0, 0)
+            accessor.visitEnd()
+        }
+
+        cw.visitEnd()
+        return cw.toByteArray()
+    }
+
+    // the nested class reads the private field of its outer class through each accessor
+    private fun generateInnerClass(spec: CorpusSpec, index: Int): ByteArray {
+        val outer = className(index)
+        val name = "$outer\$Inner"
+        val cw = ClassWriter(ClassWriter.COMPUTE_MAXS)
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_SUPER, name, null, "java/lang/Object", null)
+        cw.visitInnerClass(name, outer, "Inner", Opcodes.ACC_STATIC)
+        generateConstructor(cw, "java/lang/Object")
+        val mv = cw.visitMethod(Opcodes.ACC_STATIC, "read", "(L$outer;)I", null, null)
+        mv.visitCode()
+        mv.visitInsn(Opcodes.ICONST_0)
+        for (k in 0 until spec.accessorsPerClass) {
+            mv.visitVarInsn(Opcodes.ALOAD, 0)
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, outer, accessorName(k), "(L$outer;)I", false)
+            mv.visitInsn(Opcodes.IADD)
+        }
+        mv.visitInsn(Opcodes.IRETURN)
+        mv.visitMaxs(0, 0)
+        mv.visitEnd()
+        cw.visitEnd()
+        return cw.toByteArray()
+    }
+
+    private fun generateReferences(spec: CorpusSpec, index: Int, random: SplittableRandom, mv: MethodVisitor) {
+        for (r in 0 until spec.fieldRefsPerMethod) {
+            if (spec.fieldCount == 0) break
+            val owner = randomTarget(spec, index, random)
+            val field = if (owner == className(0)) 0 else random.nextInt(spec.fieldCount)
+            if (random.nextBoolean()) {
+                mv.visitFieldInsn(Opcodes.GETSTATIC, owner, "f$field", "I")
+                mv.visitInsn(Opcodes.POP)
+            } else {
+                mv.visitInsn(Opcodes.ICONST_1)
+                mv.visitFieldInsn(Opcodes.PUTSTATIC, owner, "f$field", "I")
+            }
+        }
+        for (r in 0 until spec.methodRefsPerMethod) {
+            if (spec.methodCount == 0) break
+            val owner = randomTarget(spec, index, random)
+            val method = if (owner == className(0)) 0 else random.nextInt(spec.methodCount)
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, owner, "m$method", "()V", false)
+        }
+        for (r in 0 until spec.classRefsPerMethod) {
+            mv.visitLdcInsn(Type.getObjectType(randomTarget(spec, index, random)))
+            mv.visitInsn(Opcodes.POP)
+        }
+    }
+
+    // C0 with hubProbability, otherwise any class of the corpus
+    private fun randomTarget(spec: CorpusSpec, index: Int, random: SplittableRandom): String {
+        if (index == 0 || random.nextDouble() < spec.hubProbability) {
+            return className(0)
+        }
+        return className(random.nextInt(spec.classCount))
+    }
+
+    private fun accessorName(index: Int) = "access\$" + index.toString().padStart(3, '0')
+
+    private fun generateConstructor(cw: ClassWriter, superName: String) {
+        val mv = cw.visitMethod(0, "<init>", "()V", null, null)
+        mv.visitCode()
+        mv.visitVarInsn(Opcodes.ALOAD, 0)
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "()V", false)
+        mv.visitInsn(Opcodes.RETURN)
+        mv.visitMaxs(0, 0)
+        mv.visitEnd()
+    }
+
+    // Writes corpus-<n>.jar into the given directory for each class count, e.g. `build/corpus 10000 100000 1000000`
+    @JvmStatic
+    fun main(args: Array<String>) {
+        require(args.size >= 2) { "Usage: CorpusGenerator <output directory> <class count>..." }
+        val dir = Paths.get(args[0])
+        for (count in args.drop(1)) {
+            val jar = dir.resolve("corpus-$count.jar")
+            writeJar(CorpusSpec(count.toInt()), jar)
+            println("Wrote $jar")
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package net.earthcomputer.classfileindexer
+
+import com.intellij.openapi.application.ApplicationManager
+import java.io.IOException
+import java.net.URI
+import java.nio.file.FileSystems
+import java.nio.file.Files
+import java.nio.file.Paths
+
+// Class files to benchmark against, read from the jrt:/ file system of the JDK running the benchmark, so no network or
+// IDE installation is needed.
+object BenchmarkCorpus {
+    // Returns the bytes of every class file in the given modules, in a stable order. Module descriptors are skipped.
+    fun jrtClasses(modules: List<String>): List<ByteArray> {
+        val fs = FileSystems.getFileSystem(URI.create("jrt:/"))
+        val classes = mutableListOf<ByteArray>()
+        for (module in modules) {
+            val root = fs.getPath("/modules", module)
+            if (!Files.isDirectory(root)) throw IOException("Module $module not found in jrt:/")
+            Files.walk(root).use { paths ->
+                paths.filter { it.toString().endsWith(".class") && it.fileName.toString() != "module-info.class" }
+                    .sorted()
+                    .forEach { classes += Files.readAllBytes(it) }
+            }
+        }
+        return classes
+    }
+
+    // The indexer calls ProgressManager.checkCanceled, which is a no-op while there is no application. The benchmarks
+    // rely on that instead of stubbing it, so make sure nothing has started one.
+    fun checkNoApplication() {
+        check(ApplicationManager.getApplication() == null) { "Benchmarks must run outside of the IDE" }
+    }
+
+    // Writes a measurement which isn't a timing, such as a size, next to the JMH results, if the benchmark.resultsDir
+    // system property is set (the jmh task sets it)
+    fun writeResult(fileName: String, json: String) {
+        val resultsDir = System.getProperty("benchmark.resultsDir") ?: return
+        val dir = Paths.get(resultsDir)
+        Files.createDirectories(dir)
+        Files.writeString(dir.resolve(fileName), json)
+    }
+}
@@ -0,0 +1,66 @@
+package net.earthcomputer.classfileindexer
+
+import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.Type
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.TimeUnit
+
+// Compares walking method descriptors through ASM Type objects, as the visitors used to, with Descriptors. Both variants
+// produce the internal name of every object type, the cursor one through a NameTable like
+// IndexerClassVisitor.addTypeDescriptor, with a new table per operation as the visitor has one per class.
+// Run with the gc profiler (enabled in build.gradle.kts) to see the allocation rate per operation.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+open class DescriptorBenchmark {
+    private val descriptors = arrayOf(
+        "()V",
+        "(Ljava/lang/String;I)Ljava/lang/Object;",
+        "([Ljava/lang/String;)V",
+        "(JDLjava/util/Map;[[ILjava/util/List;)Ljava/util/Optional;",
+        "(Lcom/google/common/collect/ImmutableMap;Ljava/util/function/Function;Ljava/util/function/BiFunction;)" +
+            "Lcom/google/common/collect/ImmutableSortedMap;"
+    )
+
+    @Benchmark
+    fun asmTypes(blackhole: Blackhole) {
+        for (desc in descriptors) {
+            val methodType = Type.getMethodType(desc)
+            for (argumentType in methodType.argumentTypes) {
+                consumeType(argumentType, blackhole)
+            }
+            consumeType(methodType.returnType, blackhole)
+        }
+    }
+
+    private fun consumeType(type: Type, blackhole: Blackhole) {
+        var t = type
+        while (t.sort == Type.ARRAY) {
+            t = t.elementType
+        }
+        if (t.sort == Type.OBJECT) {
+            blackhole.consume(t.internalName)
+        }
+    }
+
+    @Benchmark
+    fun descriptorCursor(blackhole: Blackhole) {
+        val names = NameTable()
+        for (desc in descriptors) {
+            Descriptors.forEachObjectType(desc) { start, end ->
+                blackhole.consume(names.get(desc, start, end))
+            }
+        }
+    }
+}
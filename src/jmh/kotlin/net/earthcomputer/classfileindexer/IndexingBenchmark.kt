@@ -0,0 +1,89 @@
+package net.earthcomputer.classfileindexer
+
+import com.intellij.util.io.UnsyncByteArrayOutputStream
+import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.ClassReader
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import java.io.DataOutputStream
+import java.util.concurrent.TimeUnit
+
+// Indexes the class files of a JDK module, one class per operation, cycling through the module. The score is classes
+// indexed per second, and the gc profiler's gc.alloc.rate.norm is the bytes allocated per class. The size of the index
+// built from the module doesn't change between iterations, so it is written once per trial to index-size-<module>.json
+// next to the JMH results.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class IndexingBenchmark {
+    @Param("java.base", "java.desktop")
+    var module = ""
+
+    private lateinit var classes: List<ByteArray>
+    private var next = 0
+
+    @Setup
+    fun setup() {
+        BenchmarkCorpus.checkNoApplication()
+        classes = BenchmarkCorpus.jrtClasses(listOf(module))
+        writeIndexSize()
+    }
+
+    @Benchmark
+    fun indexClass(): Any {
+        val bytes = classes[next]
+        next = (next + 1) % classes.size
+        val cv = IndexerClassVisitor()
+        ClassReader(bytes).accept(cv, ClassReader.SKIP_FRAMES)
+        return cv.index
+    }
+
+    private fun writeIndexSize() {
+        var classBytes = 0L
+        var names = 0L
+        var keys = 0L
+        var locations = 0L
+        val strings = InMemoryStrings()
+        val out = UnsyncByteArrayOutputStream()
+        val output = DataOutputStream(out)
+        for (bytes in classes) {
+            classBytes += bytes.size
+            val cv = IndexerClassVisitor()
+            ClassReader(bytes).accept(cv, ClassReader.SKIP_FRAMES)
+            for (map in cv.index.values) {
+                names++
+                keys += map.size
+                locations += map.values.sumOf { it.size }
+                ClassFileIndexValue.of(map, cv.className, cv.superName).write(output, strings::writeString)
+            }
+        }
+        val valueBytes = out.size().toLong()
+        val json = """
+            |{
+            |  "module": "$module",
+            |  "classes": ${classes.size},
+            |  "classFileBytes": $classBytes,
+            |  "values": $names,
+            |  "keys": $keys,
+            |  "locations": $locations,
+            |  "valueBytes": $valueBytes,
+            |  "enumeratedStrings": ${strings.size},
+            |  "valuesPerClass": ${names.toDouble() / classes.size},
+            |  "valueBytesPerClass": ${valueBytes.toDouble() / classes.size}
+            |}
+            |
+        """.trimMargin()
+        BenchmarkCorpus.writeResult("index-size-$module.json", json)
+    }
+}
@@ -0,0 +1,107 @@
+package net.earthcomputer.classfileindexer
+
+import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.ClassReader
+import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.ClassWriter
+import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.Handle
+import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.MethodVisitor
+import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.Opcodes
+import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.Type
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import java.util.concurrent.TimeUnit
+
+// Indexes a synthetic class made of nothing but lambdas, to catch regressions in lambda location propagation.
+// Each of the class's methods creates a chain of nested lambdas, each of which reads a field and creates the next one.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+open class LambdaPropagationBenchmark {
+    @Param("10", "100", "1000")
+    var lambdaCount = 0
+
+    @Param("1", "10")
+    var nestingDepth = 0
+
+    private lateinit var classBytes: ByteArray
+
+    @Setup
+    fun setup() {
+        classBytes = generateLambdaClass(lambdaCount, nestingDepth)
+    }
+
+    @Benchmark
+    fun indexLambdaClass(): Any {
+        val cv = IndexerClassVisitor()
+        ClassReader(classBytes).accept(cv, ClassReader.SKIP_FRAMES)
+        return cv.index
+    }
+
+    companion object {
+        private const val CLASS_NAME = "benchmark/LambdaDense"
+        private val METAFACTORY = Handle(
+            Opcodes.H_INVOKESTATIC,
+            "java/lang/invoke/LambdaMetafactory",
+            "metafactory",
+            "(Ljava/lang/invoke/MethodHandles\$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;" +
+                "Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)" +
+                "Ljava/lang/invoke/CallSite;",
+            false
+        )
+
+        fun generateLambdaClass(lambdaCount: Int, nestingDepth: Int): ByteArray {
+            val cw = ClassWriter(ClassWriter.COMPUTE_MAXS)
+            cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, CLASS_NAME, null, "java/lang/Object", null)
+            for (i in 0 until lambdaCount) {
+                cw.visitField(Opcodes.ACC_STATIC, "field$i", "I", null, null).visitEnd()
+            }
+            val chainCount = (lambdaCount + nestingDepth - 1) / nestingDepth
+            for (chain in 0 until chainCount) {
+                val mv = cw.visitMethod(Opcodes.ACC_PUBLIC or Opcodes.ACC_STATIC, "method$chain", "()V", null, null)
+                mv.visitCode()
+                createLambda(mv, chain * nestingDepth)
+                mv.visitInsn(Opcodes.RETURN)
+                mv.visitMaxs(0, 0)
+                mv.visitEnd()
+            }
+            for (i in 0 until lambdaCount) {
+                val mv = cw.visitMethod(Opcodes.ACC_PRIVATE or Opcodes.ACC_STATIC or Opcodes.ACC_SYNTHETIC, "lambda\$$i", "()V", null, null)
+                mv.visitCode()
+                mv.visitFieldInsn(Opcodes.GETSTATIC, CLASS_NAME, "field$i", "I")
+                mv.visitInsn(Opcodes.POP)
+                if ((i + 1) % nestingDepth != 0 && i + 1 < lambdaCount) {
+                    createLambda(mv, i + 1)
+                }
+                mv.visitInsn(Opcodes.RETURN)
+                mv.visitMaxs(0, 0)
+                mv.visitEnd()
+            }
+            cw.visitEnd()
+            return cw.toByteArray()
+        }
+
+        private fun createLambda(mv: MethodVisitor, lambda: Int) {
+            val voidMethod = Type.getMethodType("()V")
+            mv.visitInvokeDynamicInsn(
+                "run",
+                "()Ljava/lang/Runnable;",
+                METAFACTORY,
+                voidMethod,
+                Handle(Opcodes.H_INVOKESTATIC, CLASS_NAME, "lambda\$$lambda", "()V", false),
+                voidMethod
+            )
+            mv.visitInsn(Opcodes.POP)
+        }
+    }
+}
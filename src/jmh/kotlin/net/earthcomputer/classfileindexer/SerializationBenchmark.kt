@@ -0,0 +1,122 @@
+package net.earthcomputer.classfileindexer
+
+import com.intellij.util.io.UnsyncByteArrayInputStream
+import com.intellij.util.io.UnsyncByteArrayOutputStream
+import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.ClassReader
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.util.concurrent.TimeUnit
+
+// Round-trips the ClassFileIndexValues built from a JDK module through ClassFileIndexValue.write and read, as the value
+// externalizer of ClassFileIndexExtension does, one value per operation. Strings are enumerated in memory, standing in for
+// the index's enumerator. Scores are ns per value, and gc.alloc.rate.norm from the gc profiler is the allocation per value.
+//
+// readValue only decodes what reading a value from the index decodes, while readAndDecodeValue also resolves every key
+// and location, as a search touching the whole value would, so the cost of lazy decoding shows in the difference.
+// The serialized sizes don't vary between runs, so they are written once per trial to value-sizes-<module>.json next to
+// the JMH results, if the benchmark.resultsDir system property is set (the jmh task sets it).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class SerializationBenchmark {
+    @Param("java.base")
+    var module = ""
+
+    private val strings = InMemoryStrings()
+    private lateinit var values: List<ClassFileIndexValue>
+    private lateinit var serialized: List<ByteArray>
+    private var next = 0
+
+    private val out = UnsyncByteArrayOutputStream()
+    private val output = DataOutputStream(out)
+
+    @Setup
+    fun setup() {
+        BenchmarkCorpus.checkNoApplication()
+        val values = mutableListOf<ClassFileIndexValue>()
+        for (bytes in BenchmarkCorpus.jrtClasses(listOf(module))) {
+            val cv = IndexerClassVisitor()
+            ClassReader(bytes).accept(cv, ClassReader.SKIP_FRAMES)
+            for (map in cv.index.values) {
+                values += ClassFileIndexValue.of(map, cv.className, cv.superName)
+            }
+        }
+        this.values = values
+        serialized = values.map { value ->
+            out.reset()
+            value.write(output, strings::writeString)
+            out.toByteArray()
+        }
+        writeSizes()
+    }
+
+    @Benchmark
+    fun writeValue(): Int {
+        val value = values[next]
+        next = (next + 1) % values.size
+        out.reset()
+        value.write(output, strings::writeString)
+        return out.size()
+    }
+
+    @Benchmark
+    fun readValue(): Any {
+        return read(nextSerialized())
+    }
+
+    @Benchmark
+    fun readAndDecodeValue(): Int {
+        val value = read(nextSerialized())
+        var sum = value.className.length
+        for (i in 0 until value.keyCount) {
+            sum += value.keyAt(i).hashCode()
+            value.forEachLocation(i) { location, count ->
+                sum += location.length + count
+            }
+        }
+        return sum
+    }
+
+    private fun nextSerialized(): ByteArray {
+        val bytes = serialized[next]
+        next = (next + 1) % serialized.size
+        return bytes
+    }
+
+    private fun read(bytes: ByteArray): ClassFileIndexValue {
+        return ClassFileIndexValue.read(DataInputStream(UnsyncByteArrayInputStream(bytes)), strings::readString)
+    }
+
+    private fun writeSizes() {
+        val sizes = serialized.map { it.size }.sorted()
+        val total = sizes.sumOf { it.toLong() }
+        val json = """
+            |{
+            |  "module": "$module",
+            |  "values": ${sizes.size},
+            |  "totalBytes": $total,
+            |  "bytesPerValue": ${total.toDouble() / sizes.size},
+            |  "p50Bytes": ${sizes[sizes.size / 2]},
+            |  "p99Bytes": ${sizes[sizes.size * 99 / 100]},
+            |  "maxBytes": ${sizes.last()},
+            |  "enumeratedStrings": ${strings.size}
+            |}
+            |
+        """.trimMargin()
+        BenchmarkCorpus.writeResult("value-sizes-$module.json", json)
+    }
+}
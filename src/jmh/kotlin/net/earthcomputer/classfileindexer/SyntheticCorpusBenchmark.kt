@@ -0,0 +1,92 @@
+package net.earthcomputer.classfileindexer
+
+import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.ClassReader
+import org.openjdk.jmh.annotations.AuxCounters
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Warmup
+import java.nio.file.Files
+import java.nio.file.Paths
+import java.util.concurrent.TimeUnit
+import java.util.zip.ZipFile
+
+// Indexes a whole synthetic corpus generated by CorpusGenerator per operation, to see how indexing scales with the number
+// of classes. Corpora are generated into benchmark.corpusDir (build/corpus when run through the jmh task) the first time
+// they are needed, and read back from the jar, as a million classes don't fit in memory.
+// Classes per second is classes / score. The index size is reported through the auxiliary counters, and allocation per
+// class is gc.alloc.rate.norm / classes.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+open class SyntheticCorpusBenchmark {
+    @Param("10000", "100000", "1000000")
+    var classCount = 0
+
+    private lateinit var jar: ZipFile
+
+    @Setup
+    fun setup() {
+        BenchmarkCorpus.checkNoApplication()
+        val dir = Paths.get(System.getProperty("benchmark.corpusDir") ?: "build/corpus")
+        val path = dir.resolve("corpus-$classCount.jar")
+        if (!Files.exists(path)) {
+            CorpusGenerator.writeJar(CorpusSpec(classCount), path)
+        }
+        jar = ZipFile(path.toFile())
+    }
+
+    @TearDown
+    fun tearDown() {
+        jar.close()
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    open class IndexSize {
+        var classes = 0L
+        var values = 0L
+        var keys = 0L
+        var locations = 0L
+
+        @Setup(Level.Iteration)
+        fun reset() {
+            classes = 0
+            values = 0
+            keys = 0
+            locations = 0
+        }
+    }
+
+    @Benchmark
+    fun indexCorpus(size: IndexSize) {
+        val entries = jar.entries()
+        while (entries.hasMoreElements()) {
+            val entry = entries.nextElement()
+            if (!entry.name.endsWith(".class")) continue
+            val bytes = jar.getInputStream(entry).use { it.readAllBytes() }
+            val cv = IndexerClassVisitor()
+            ClassReader(bytes).accept(cv, ClassReader.SKIP_FRAMES)
+            size.classes++
+            for (map in cv.index.values) {
+                size.values++
+                size.keys += map.size
+                for (locations in map.values) {
+                    size.locations += locations.size
+                }
+            }
+        }
+    }
+}
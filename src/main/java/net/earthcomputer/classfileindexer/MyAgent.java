@@ -30,6 +30,9 @@ public class MyAgent implements ClassFileTransformer {
     private static final String USAGE_INFO_2_USAGE_ADAPTER = "com/intellij/usages/UsageInfo2UsageAdapter";
     private static final String PSI_UTIL = "com/intellij/psi/util/PsiUtil";
     private static final String JAVA_READ_WRITE_ACCESS_DETECTOR = "com/intellij/codeInsight/highlighting/JavaReadWriteAccessDetector";
+    private static final String USAGE_VIEW_UTIL = "com/intellij/usageView/UsageViewUtil";
+    private static final String USAGE_PREVIEW_PANEL = "com/intellij/usages/impl/UsagePreviewPanel";
+    private static final String NAVIGATION_CALLERS = "net.earthcomputer.classfileindexer.NavigationCallers";
 
     public static void agentmain(String s, Instrumentation instrumentation) throws UnmodifiableClassException {
         instrumentation.addTransformer(new MyAgent(), true);
@@ -40,7 +43,9 @@ public class MyAgent implements ClassFileTransformer {
             if (USAGE_INFO.equals(className)
                     || USAGE_INFO_2_USAGE_ADAPTER.equals(className)
                     || PSI_UTIL.equals(className)
-                    || JAVA_READ_WRITE_ACCESS_DETECTOR.equals(className)) {
+                    || JAVA_READ_WRITE_ACCESS_DETECTOR.equals(className)
+                    || USAGE_VIEW_UTIL.equals(className)
+                    || USAGE_PREVIEW_PANEL.equals(className)) {
                 classesToRetransform.add(clazz);
             }
         }
@@ -87,7 +92,7 @@ public class MyAgent implements ClassFileTransformer {
                                     (methodVisitor1, hookInfo1) -> new ComputeTextMethodVisitor(methodVisitor1, hookInfo1, false)
                             )
                     );
-                    return transformClass(
+                    classfileBuffer = transformClass(
                             classfileBuffer,
                             loader,
                             "net.earthcomputer.classfileindexer.IHasNavigationOffset",
@@ -99,6 +104,37 @@ public class MyAgent implements ClassFileTransformer {
                                     UsageInfoLineNumberMethodVisitor::new
                             )
                     );
+                    return transformClass(
+                            classfileBuffer,
+                            loader,
+                            NAVIGATION_CALLERS,
+                            "mark",
+                            "(Ljava/lang/String;)V",
+                            new HookClassVisitor.Target("getDescriptor", null, (methodVisitor, hookInfo) -> new MarkCallerMethodVisitor(methodVisitor, hookInfo, "getDescriptor")),
+                            new HookClassVisitor.Target("openTextEditor", null, (methodVisitor, hookInfo) -> new MarkCallerMethodVisitor(methodVisitor, hookInfo, "openTextEditor"))
+                    );
+                case USAGE_VIEW_UTIL:
+                    return transformClass(
+                            classfileBuffer,
+                            loader,
+                            NAVIGATION_CALLERS,
+                            "mark",
+                            "(Ljava/lang/String;)V",
+                            new HookClassVisitor.Target(
+                                    "navigateTo",
+                                    "(Lcom/intellij/usageView/UsageInfo;Z)V",
+                                    (methodVisitor, hookInfo) -> new MarkCallerMethodVisitor(methodVisitor, hookInfo, "navigateTo")
+                            )
+                    );
+                case USAGE_PREVIEW_PANEL:
+                    return transformClass(
+                            classfileBuffer,
+                            loader,
+                            NAVIGATION_CALLERS,
+                            "mark",
+                            "(Ljava/lang/String;)V",
+                            new HookClassVisitor.Target("highlight", null, (methodVisitor, hookInfo) -> new MarkCallerMethodVisitor(methodVisitor, hookInfo, "highlight"))
+                    );
                 case PSI_UTIL:
                     return transformClass(
                             classfileBuffer,
@@ -185,6 +221,7 @@ public class MyAgent implements ClassFileTransformer {
     private static class HookClassVisitor extends ClassVisitor {
         static class Target {
             final String hookMethodName;
+            // null to hook every overload
             final String hookMethodDesc;
             final BiFunction<MethodVisitor, HookInfo, MethodVisitor> hookMethodTransformer;
 
@@ -201,6 +238,7 @@ public class MyAgent implements ClassFileTransformer {
             final Target[] targets;
             final String hookClassField;
             final String hookMethodField;
+            final String hookHandleField;
             String targetClass;
 
             HookInfo(String interfaceName, String interfaceMethod, String interfaceMethodDesc, Target... targets) {
@@ -210,6 +248,7 @@ public class MyAgent implements ClassFileTransformer {
                 this.targets = targets;
                 this.hookClassField = "C" + interfaceName.toUpperCase(Locale.ROOT).replace('.', '_');
                 this.hookMethodField = hookClassField + "_" + interfaceMethod.toUpperCase(Locale.ROOT);
+                this.hookHandleField = hookMethodField + "_HANDLE";
             }
 
         }
@@ -242,6 +281,9 @@ public class MyAgent implements ClassFileTransformer {
             if (fv != null)
                 fv.visitEnd();
             fv = visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, hookInfo.hookMethodField, "Ljava/lang/reflect/Method;", null, null);
+            if (fv != null)
+                fv.visitEnd();
+            fv = visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, hookInfo.hookHandleField, "Ljava/lang/invoke/MethodHandle;", null, null);
             if (fv != null)
                 fv.visitEnd();
             super.visitEnd();
@@ -255,7 +297,7 @@ public class MyAgent implements ClassFileTransformer {
                 return new HookClinitVisitor(mv, hookInfo);
             }
             for (Target target : hookInfo.targets) {
-                if (target.hookMethodName.equals(name) && target.hookMethodDesc.equals(descriptor)) {
+                if (target.hookMethodName.equals(name) && (target.hookMethodDesc == null || target.hookMethodDesc.equals(descriptor))) {
                     return target.hookMethodTransformer.apply(mv, hookInfo);
                 }
             }
@@ -300,14 +342,20 @@ public class MyAgent implements ClassFileTransformer {
                 visitInsn(Opcodes.AASTORE);
             }
             visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Class", "getMethod", "(Ljava/lang/String;[Ljava/lang/Class;)Ljava/lang/reflect/Method;", false);
+            visitInsn(Opcodes.DUP);
             visitFieldInsn(Opcodes.PUTSTATIC, hookInfo.targetClass, hookInfo.hookMethodField,
                     "Ljava/lang/reflect/Method;");
+            // for hooks which are called directly rather than through reflection
+            visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/invoke/MethodHandles", "publicLookup", "()Ljava/lang/invoke/MethodHandles$Lookup;", false);
+            visitInsn(Opcodes.SWAP);
+            visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/invoke/MethodHandles$Lookup", "unreflect", "(Ljava/lang/reflect/Method;)Ljava/lang/invoke/MethodHandle;", false);
+            visitFieldInsn(Opcodes.PUTSTATIC, hookInfo.targetClass, hookInfo.hookHandleField, "Ljava/lang/invoke/MethodHandle;");
         }
 
     }
 
     private static abstract class HookMethodVisitor extends MethodVisitor {
-        private final HookClassVisitor.HookInfo hookInfo;
+        protected final HookClassVisitor.HookInfo hookInfo;
         private Label jumpLabel;
 
         public HookMethodVisitor(MethodVisitor methodVisitor, HookClassVisitor.HookInfo hookInfo) {
@@ -583,6 +631,80 @@ public class MyAgent implements ClassFileTransformer {
         }
     }
 
+    // Calls the static hook method with the name of the hooked method on entry, and with null on every exit, including by
+    // an exception, so the hook can tell which hooked methods the current thread is in without walking the stack.
+    // The hook is called through a constant MethodHandle rather than reflection, so no argument array is allocated per call.
+    // The calls on exit are left out of the exception handler's ranges, so an exception thrown by one doesn't call it again.
+    private static class MarkCallerMethodVisitor extends HookMethodVisitor {
+        private final String methodName;
+        private final List<Label> rangeBounds = new ArrayList<>();
+
+        public MarkCallerMethodVisitor(MethodVisitor methodVisitor, HookClassVisitor.HookInfo hookInfo, String methodName) {
+            super(methodVisitor, hookInfo);
+            this.methodName = methodName;
+        }
+
+        @Override
+        public void visitCode() {
+            super.visitCode();
+            addMark(methodName);
+            startRange();
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            if (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) {
+                endRange();
+                addMark(null);
+                super.visitInsn(opcode);
+                startRange();
+            } else {
+                super.visitInsn(opcode);
+            }
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            endRange();
+            Label handler = new Label();
+            visitLabel(handler);
+            addMark(null);
+            visitInsn(Opcodes.ATHROW);
+            // visited last, so the method's own handlers take precedence
+            for (int i = 0; i < rangeBounds.size(); i += 2) {
+                Label start = rangeBounds.get(i);
+                Label end = rangeBounds.get(i + 1);
+                // the labels have been written already, empty ranges such as after the last return are not allowed
+                if (start.getOffset() < end.getOffset()) {
+                    visitTryCatchBlock(start, end, handler, null);
+                }
+            }
+            super.visitMaxs(maxStack, maxLocals);
+        }
+
+        private void startRange() {
+            Label start = new Label();
+            visitLabel(start);
+            rangeBounds.add(start);
+        }
+
+        private void endRange() {
+            Label end = new Label();
+            visitLabel(end);
+            rangeBounds.add(end);
+        }
+
+        private void addMark(String name) {
+            visitFieldInsn(Opcodes.GETSTATIC, hookInfo.targetClass, hookInfo.hookHandleField, "Ljava/lang/invoke/MethodHandle;");
+            if (name == null) {
+                visitInsn(Opcodes.ACONST_NULL);
+            } else {
+                visitLdcInsn(name);
+            }
+            visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/invoke/MethodHandle", "invokeExact", hookInfo.interfaceMethodDesc, false);
+        }
+    }
+
     private static void loadInt(MethodVisitor mv, int val) {
         assert val >= 0;
         if (val <= 5) {
@@ -0,0 +1,68 @@
+package net.earthcomputer.classfileindexer
+
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.util.indexing.DataIndexer
+import com.intellij.util.indexing.FileContent
+import com.intellij.util.indexing.ID
+import com.intellij.util.io.DataExternalizer
+import com.intellij.util.io.DataInputOutputUtil
+import java.io.DataInput
+import java.io.DataOutput
+
+// Maps synthetic accessor methods, keyed by "owner.name:desc", to the locations they are called from.
+// Resolving a DelegateIndexKey hit is then a single lookup rather than a full search for the accessor's name.
+class AccessorIndexExtension : EnumeratedIndexExtension<Map<String, Int>>() {
+    override fun getName() = INDEX_ID
+
+    override fun getIndexer() = DataIndexer<String, Map<String, Int>, FileContent> { content ->
+        IndexerClassVisitor.forContent(content).accessorCallSites
+    }
+
+    // Values are written like the location blocks of ClassFileIndexValue: the locations are sorted by their enumerated id,
+    // and each one is written as the delta from the previous id, with its count only following if it is not 1
+    override fun getValueExternalizer() = object : DataExternalizer<Map<String, Int>> {
+        override fun save(out: DataOutput, value: Map<String, Int>) {
+            ProgressManager.checkCanceled()
+            val ids = IntArray(value.size)
+            val counts = IntArray(value.size)
+            for ((i, entry) in value.entries.withIndex()) {
+                ids[i] = enumerate(entry.key)
+                counts[i] = entry.value
+            }
+            ClassFileIndexValue.sortLocations(ids, counts)
+            DataInputOutputUtil.writeINT(out, ids.size)
+            var prevId = 0
+            for (i in ids.indices) {
+                ClassFileIndexValue.writeCountedDelta(out, ids[i] - prevId - 1, counts[i])
+                prevId = ids[i]
+            }
+        }
+
+        override fun read(input: DataInput): Map<String, Int> {
+            ProgressManager.checkCanceled()
+            val result = SmartMap<String, Int>()
+            var prevId = 0
+            repeat(DataInputOutputUtil.readINT(input)) {
+                ClassFileIndexValue.readCountedDelta(input) { delta, count ->
+                    val id = prevId + delta + 1
+                    prevId = id
+                    result[valueOf(id)] = count
+                }
+            }
+            return result
+        }
+    }
+
+    override fun getVersion() = VERSION
+
+    companion object {
+        val INDEX_ID = ID.create<String, Map<String, Int>>("classfileindexer.accessors")
+        const val VERSION = 2
+
+        // javac, ecj and kotlinc all name their accessors this way. Accessors with other names (e.g. after obfuscation)
+        // are not indexed here, and are resolved by searching for their name instead.
+        fun isAccessorName(name: String) = name.startsWith("access$")
+
+        fun key(owner: String, location: String) = "$owner.$location"
+    }
+}
@@ -22,6 +22,8 @@ class AgentInitializedListener : ApplicationInitializedListener {
     }
 
     override fun componentsInitialized() {
+        PluginMetrics.registerMBean()
+
         val jarFile = File.createTempFile("agent", ".jar")
         val jarPath = jarFile.toPath()
 
@@ -71,6 +73,7 @@ class AgentInitializedListener : ApplicationInitializedListener {
             copyAgentClass("$AGENT_CLASS_NAME\$IsAccessedForWriteMethodVisitor")
             copyAgentClass("$AGENT_CLASS_NAME\$JavaReadWriteAccessDetectorMethodVisitor")
             copyAgentClass("$AGENT_CLASS_NAME\$UsageInfoLineNumberMethodVisitor")
+            copyAgentClass("$AGENT_CLASS_NAME\$MarkCallerMethodVisitor")
 
             copyAllAgentClasses("net.earthcomputer.classfileindexer.libs.org.objectweb.asm.", ::writeEntry)
         }
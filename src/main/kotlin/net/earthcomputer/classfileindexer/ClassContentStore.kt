@@ -0,0 +1,177 @@
+package net.earthcomputer.classfileindexer
+
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.util.indexing.FileBasedIndex
+import com.intellij.util.io.DataExternalizer
+import com.intellij.util.io.EnumeratorIntegerDescriptor
+import com.intellij.util.io.IOUtil
+import com.intellij.util.io.KeyDescriptor
+import com.intellij.util.io.PersistentEnumerator
+import com.intellij.util.io.PersistentHashMap
+import java.io.Closeable
+import java.io.DataInput
+import java.io.DataOutput
+import java.io.IOException
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.security.MessageDigest
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+// Identifies class files by their content, so byte-identical copies of a class in several jars (shaded copies, versions of
+// a library which didn't change the class, the same artifact under different coordinates) are visited at most twice, and
+// their hits are only reported once.
+//
+// Every distinct content, hashed with SHA-1 together with the index versions, is enumerated to a content id, and the
+// content id of every indexed file is recorded by file id. Searches look up the content id of the files they report, so
+// the index values themselves don't carry anything. The index data of a class is only stored once a second file with the
+// same content is indexed, so classes without copies cost one hash entry and one file entry on disk, and nothing in memory.
+// The first and second copies are both visited, and only the third and later copies are read from the store.
+//
+// Everything is stored next to the main index and recreated with it. A file without a recorded content id, e.g. because
+// the store was recreated after it was indexed, is never a copy of anything.
+class ClassContentStore(private val path: Path) {
+    private val lock = ReentrantReadWriteLock()
+    private var storage: Storage? = null
+
+    private class Storage(path: Path) : Closeable {
+        val hashes = PersistentEnumerator(Paths.get("$path.hashes"), HashDescriptor, ENUMERATOR_INITIAL_SIZE)
+        val fileContents = PersistentHashMap(
+            Paths.get("$path.files"),
+            EnumeratorIntegerDescriptor.INSTANCE,
+            EnumeratorIntegerDescriptor.INSTANCE
+        )
+        val sharedClasses = PersistentHashMap(Paths.get("$path.shared"), EnumeratorIntegerDescriptor.INSTANCE, IndexedClassExternalizer)
+
+        override fun close() {
+            IOUtil.closeSafe(LOGGER, hashes, fileContents, sharedClasses)
+        }
+    }
+
+    // Returns the index data of a class file, which is only computed if no copy of it was stored, and records the content
+    // of the file
+    fun indexedClass(file: VirtualFile, bytes: ByteArray, compute: () -> IndexedClass): IndexedClass {
+        val hash = hashOf(bytes)
+        val fileId = FileBasedIndex.getFileId(file)
+        lock.read {
+            val storage = storage ?: return compute()
+            var contentId = 0
+            var isCopy = false
+            try {
+                contentId = storage.hashes.tryEnumerate(hash)
+                // the same file being indexed again isn't a copy
+                isCopy = contentId != 0 && storage.fileContents.get(fileId) != contentId
+                if (isCopy) {
+                    storage.sharedClasses.get(contentId)?.let { indexed ->
+                        PluginMetrics.increment(PluginMetrics.Counter.CLASSES_FROM_CONTENT_STORE)
+                        storage.fileContents.put(fileId, contentId)
+                        return indexed
+                    }
+                }
+            } catch (e: IOException) {
+                LOGGER.warn("Failed to look up the content of $file", e)
+                return compute()
+            }
+            val indexed = compute()
+            try {
+                if (contentId == 0) {
+                    contentId = storage.hashes.enumerate(hash)
+                } else if (isCopy) {
+                    storage.sharedClasses.put(contentId, indexed)
+                }
+                storage.fileContents.put(fileId, contentId)
+            } catch (e: IOException) {
+                LOGGER.warn("Failed to record the content of $file", e)
+            }
+            return indexed
+        }
+    }
+
+    // The content id of the file when it was last indexed, or 0 if it isn't known
+    fun contentIdOf(file: VirtualFile): Int {
+        lock.read {
+            val storage = storage ?: return 0
+            return try {
+                storage.fileContents.get(FileBasedIndex.getFileId(file)) ?: 0
+            } catch (e: IOException) {
+                LOGGER.warn("Failed to look up the content of $file", e)
+                0
+            }
+        }
+    }
+
+    // Called before the index is opened. Whatever is left over from before a new index belongs to another index.
+    fun open(isNewIndex: Boolean) {
+        lock.write {
+            if (isNewIndex) {
+                IOUtil.deleteAllFilesStartingWith(path.toFile())
+            }
+            storage = createStorage()
+        }
+    }
+
+    fun clear() {
+        lock.write {
+            storage?.close()
+            IOUtil.deleteAllFilesStartingWith(path.toFile())
+            storage = createStorage()
+        }
+    }
+
+    fun close() {
+        lock.write {
+            storage?.close()
+            storage = null
+        }
+    }
+
+    // A store which can't be opened, e.g. because the IDE didn't close it, starts over rather than mixing content ids
+    private fun createStorage(): Storage? {
+        try {
+            return Storage(path)
+        } catch (e: IOException) {
+            LOGGER.info("Recreating the class content store", e)
+        }
+        IOUtil.deleteAllFilesStartingWith(path.toFile())
+        return try {
+            Storage(path)
+        } catch (e: IOException) {
+            LOGGER.warn("Failed to create the class content store, copies of class files will be indexed separately", e)
+            null
+        }
+    }
+
+    private fun hashOf(bytes: ByteArray): ByteArray {
+        val digest = DIGEST.get()
+        digest.update(VERSION_BYTES)
+        return digest.digest(bytes)
+    }
+
+    private object HashDescriptor : KeyDescriptor<ByteArray> {
+        override fun getHashCode(value: ByteArray) = value.contentHashCode()
+
+        override fun isEqual(val1: ByteArray, val2: ByteArray) = val1.contentEquals(val2)
+
+        override fun save(out: DataOutput, value: ByteArray) = out.write(value)
+
+        override fun read(input: DataInput) = ByteArray(HASH_SIZE).also { input.readFully(it) }
+    }
+
+    private object IndexedClassExternalizer : DataExternalizer<IndexedClass> {
+        override fun save(out: DataOutput, value: IndexedClass) = IndexBundles.writeClass(out, value)
+
+        override fun read(input: DataInput) = IndexBundles.readClass(input)
+    }
+
+    companion object {
+        private val LOGGER = Logger.getInstance(ClassContentStore::class.java)
+        private const val ENUMERATOR_INITIAL_SIZE = 1024 * 4
+        private const val HASH_SIZE = 20
+
+        // data computed by another version of the indexer is never reused
+        private val VERSION_BYTES = IndexBundles.indexVersion.toByteArray()
+        private val DIGEST = ThreadLocal.withInitial { MessageDigest.getInstance("SHA-1") }
+    }
+}
@@ -5,40 +5,15 @@ import com.intellij.openapi.util.RecursionManager
 import com.intellij.openapi.vfs.VirtualFile
 import com.intellij.psi.search.GlobalSearchScope
 import com.intellij.psi.search.SearchScope
+import com.intellij.util.SmartList
 import com.intellij.util.indexing.FileBasedIndex
-import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.ClassReader
 
 object ClassFileIndex {
     fun search(name: String, key: BinaryIndexKey, scope: SearchScope): Map<VirtualFile, Map<String, Int>> {
-        val globalScope = asGlobal(scope)
-        val files = mutableMapOf<VirtualFile, MutableMap<String, Int>>()
-        val locationsToSearchFurther = mutableSetOf<Pair<String, String>>()
-        FileBasedIndex.getInstance().processValues(
-            ClassFileIndexExtension.INDEX_ID, name, null,
-            { file, value ->
-                ProgressManager.checkCanceled()
-                val className by lazy {
-                    file.inputStream.use {
-                        ClassReader(it).className
-                    }
-                }
-                value[key]?.let {
-                    files[file] = it.toMutableMap()
-                }
-                value[DelegateIndexKey(key)]?.let { delegate ->
-                    delegate.keys.mapTo(locationsToSearchFurther) { Pair(it, className) }
-                }
-                true
-            },
-            globalScope
-        )
-        for ((location, owner) in locationsToSearchFurther) {
-            searchLocation(location, owner, globalScope) { file, sourceMap ->
-                val targetMap = files.computeIfAbsent(file) { mutableMapOf() }
-                for ((k, v) in sourceMap) {
-                    targetMap.merge(k, v, Integer::sum)
-                }
-            }
+        val files = mutableMapOf<VirtualFile, Map<String, Int>>()
+        processFiles(name, key, scope) { file, locations ->
+            files[file] = locations
+            true
         }
         return files
     }
@@ -48,17 +23,12 @@ object ClassFileIndex {
         keyPredicate: (BinaryIndexKey) -> Boolean,
         scope: SearchScope
     ): Map<VirtualFile, Map<String, Int>> {
-        val result = mutableMapOf<VirtualFile, Map<String, Int>>()
-        for ((file, keys) in searchReturnKeys(name, keyPredicate, scope)) {
-            val targetMap = mutableMapOf<String, Int>()
-            for (value in keys.values) {
-                for ((k, v) in value) {
-                    targetMap.merge(k, v, Integer::sum)
-                }
-            }
-            result[file] = targetMap
+        val files = mutableMapOf<VirtualFile, Map<String, Int>>()
+        processFiles(name, keyPredicate, scope) { file, locations ->
+            files[file] = locations
+            true
         }
-        return result
+        return files
     }
 
     fun searchReturnKeys(
@@ -66,49 +36,192 @@ object ClassFileIndex {
         keyPredicate: (BinaryIndexKey) -> Boolean,
         scope: SearchScope
     ): Map<VirtualFile, Map<BinaryIndexKey, Map<String, Int>>> {
-        val globalScope = asGlobal(scope)
-        val files = mutableMapOf<VirtualFile, MutableMap<BinaryIndexKey, MutableMap<String, Int>>>()
-        val locationsToSearchFurther = mutableSetOf<Triple<BinaryIndexKey, String, String>>()
-        FileBasedIndex.getInstance().processValues(
-            ClassFileIndexExtension.INDEX_ID, name, null,
-            { file, value ->
-                ProgressManager.checkCanceled()
-                val className by lazy {
-                    file.inputStream.use {
-                        ClassReader(it).className
+        val files = mutableMapOf<VirtualFile, Map<BinaryIndexKey, Map<String, Int>>>()
+        processFilesReturnKeys(name, keyPredicate, scope) { file, keys ->
+            files[file] = keys
+            true
+        }
+        return files
+    }
+
+    // The process functions pass each file to the processor as soon as the index yields it, and stop as soon as the
+    // processor returns false, in which case they return false too. Hits through synthetic methods are found in the same
+    // pass over the index, and resolved once the direct hits have streamed. A file can only be passed to the processor
+    // twice if it has both direct hits and hits through a synthetic method for the same key, which compilers don't produce:
+    // a class which can access a member directly never goes through an accessor to it.
+    // Files with the same content as another file already passed to the processor, i.e. copies of the same class file in
+    // several jars, are skipped, whether their hits are direct or through synthetic methods, so each distinct hit is only
+    // reported once.
+    fun processFiles(
+        name: String,
+        key: BinaryIndexKey,
+        scope: SearchScope,
+        processor: (VirtualFile, Map<String, Int>) -> Boolean
+    ): Boolean {
+        if (!ClassFileIndexExtension.rootFilters.mayContain(name, scope)) {
+            return true
+        }
+        val delegateKey = DelegateIndexKey(key)
+        val locationsToSearchFurther = mutableSetOf<Pair<String, String>>()
+        val reportedContent = ReportedContent()
+        val completed = SearchTrace.time(SearchPhase.INDEX_LOOKUP) {
+            PluginMetrics.increment(PluginMetrics.Counter.PROCESS_VALUES_CALLS)
+            FileBasedIndex.getInstance().processValues(
+                ClassFileIndexExtension.INDEX_ID, name, null,
+                { file, value ->
+                    ProgressManager.checkCanceled()
+                    SearchTrace.count(SearchCounter.VALUES_DECODED)
+                    val delegateIndex = value.indexOfKey(delegateKey)
+                    if (delegateIndex >= 0) {
+                        value.forEachLocation(delegateIndex) { location, _ ->
+                            locationsToSearchFurther += Pair(location, value.className)
+                        }
+                    }
+                    val keyIndex = value.indexOfKey(key)
+                    if (keyIndex < 0 || reportedContent.isCopyOfReportedFile(file)) {
+                        true
+                    } else {
+                        processor(file, value.locationsAt(keyIndex))
+                    }
+                },
+                asGlobal(scope)
+            )
+        }
+        if (!completed) {
+            return false
+        }
+        val delegatedFiles = mutableMapOf<VirtualFile, MutableMap<String, Int>>()
+        SearchTrace.time(SearchPhase.DELEGATE_RESOLUTION) {
+            for ((location, owner) in locationsToSearchFurther) {
+                searchLocation(location, owner, scope) { file, sourceMap ->
+                    val targetMap = delegatedFiles.computeIfAbsent(file) { mutableMapOf() }
+                    for ((k, v) in sourceMap) {
+                        targetMap.merge(k, v, Integer::sum)
                     }
                 }
-                for ((key, v) in value) {
-                    if (keyPredicate(key)) {
-                        files.computeIfAbsent(file) { mutableMapOf() }[key] = v.toMutableMap()
-                    } else if (key is DelegateIndexKey && keyPredicate(key.key)) {
-                        v.keys.mapTo(locationsToSearchFurther) { Triple(key.key, it, className) }
+            }
+        }
+        for ((file, locations) in delegatedFiles) {
+            if (!reportedContent.isCopyOfReportedFile(file) && !processor(file, locations)) {
+                return false
+            }
+        }
+        return true
+    }
+
+    // Like processFilesReturnKeys, but with the locations of all matching keys in a file merged together.
+    fun processFiles(
+        name: String,
+        keyPredicate: (BinaryIndexKey) -> Boolean,
+        scope: SearchScope,
+        processor: (VirtualFile, Map<String, Int>) -> Boolean
+    ): Boolean {
+        return processFilesReturnKeys(name, keyPredicate, scope) { file, keys ->
+            val singleValue = keys.values.singleOrNull()
+            if (singleValue != null) {
+                processor(file, singleValue)
+            } else {
+                val targetMap = mutableMapOf<String, Int>()
+                for (value in keys.values) {
+                    for ((k, v) in value) {
+                        targetMap.merge(k, v, Integer::sum)
                     }
                 }
-                true
-            },
-            globalScope
-        )
-        for ((key, location, owner) in locationsToSearchFurther) {
-            searchLocation(location, owner, globalScope) { file, sourceMap ->
-                val targetMap = files.computeIfAbsent(file) { mutableMapOf() }
-                    .computeIfAbsent(key) { mutableMapOf() }
-                for ((k, v1) in sourceMap) {
-                    targetMap.merge(k, v1, Integer::sum)
+                processor(file, targetMap)
+            }
+        }
+    }
+
+    fun processFilesReturnKeys(
+        name: String,
+        keyPredicate: (BinaryIndexKey) -> Boolean,
+        scope: SearchScope,
+        processor: (VirtualFile, Map<BinaryIndexKey, Map<String, Int>>) -> Boolean
+    ): Boolean {
+        if (!ClassFileIndexExtension.rootFilters.mayContain(name, scope)) {
+            return true
+        }
+        val locationsToSearchFurther = mutableSetOf<Triple<BinaryIndexKey, String, String>>()
+        val reportedContent = ReportedContent()
+        val completed = SearchTrace.time(SearchPhase.INDEX_LOOKUP) {
+            PluginMetrics.increment(PluginMetrics.Counter.PROCESS_VALUES_CALLS)
+            FileBasedIndex.getInstance().processValues(
+                ClassFileIndexExtension.INDEX_ID, name, null,
+                { file, value ->
+                    ProgressManager.checkCanceled()
+                    SearchTrace.count(SearchCounter.VALUES_DECODED)
+                    var keys: MutableMap<BinaryIndexKey, Map<String, Int>>? = null
+                    for (i in 0 until value.keyCount) {
+                        val key = value.keyAt(i)
+                        if (key is DelegateIndexKey) {
+                            if (keyPredicate(key.key)) {
+                                value.forEachLocation(i) { location, _ ->
+                                    locationsToSearchFurther += Triple(key.key, location, value.className)
+                                }
+                            }
+                        } else if (keyPredicate(key)) {
+                            if (keys == null) {
+                                keys = mutableMapOf()
+                            }
+                            keys[key] = value.locationsAt(i)
+                        }
+                    }
+                    if (keys == null || reportedContent.isCopyOfReportedFile(file)) {
+                        true
+                    } else {
+                        processor(file, keys)
+                    }
+                },
+                asGlobal(scope)
+            )
+        }
+        if (!completed) {
+            return false
+        }
+        val delegatedFiles = mutableMapOf<VirtualFile, MutableMap<BinaryIndexKey, MutableMap<String, Int>>>()
+        SearchTrace.time(SearchPhase.DELEGATE_RESOLUTION) {
+            for ((key, location, owner) in locationsToSearchFurther) {
+                searchLocation(location, owner, scope) { file, sourceMap ->
+                    val targetMap = delegatedFiles.computeIfAbsent(file) { mutableMapOf() }
+                        .computeIfAbsent(key) { mutableMapOf() }
+                    for ((k, v) in sourceMap) {
+                        targetMap.merge(k, v, Integer::sum)
+                    }
                 }
             }
         }
-        return files
+        for ((file, keys) in delegatedFiles) {
+            if (!reportedContent.isCopyOfReportedFile(file) && !processor(file, keys)) {
+                return false
+            }
+        }
+        return true
     }
 
     private fun searchLocation(
         location: String,
         owner: String,
-        scope: GlobalSearchScope,
+        scope: SearchScope,
         consumer: (VirtualFile, Map<String, Int>) -> Unit
     ) {
+        PluginMetrics.increment(PluginMetrics.Counter.DELEGATE_RESOLUTIONS)
+        SearchTrace.count(SearchCounter.DELEGATE_HOPS)
+        val name = location.substringBefore(":")
+        if (AccessorIndexExtension.isAccessorName(name)) {
+            PluginMetrics.increment(PluginMetrics.Counter.PROCESS_VALUES_CALLS)
+            FileBasedIndex.getInstance().processValues(
+                AccessorIndexExtension.INDEX_ID, AccessorIndexExtension.key(owner, location), null,
+                { file, value ->
+                    ProgressManager.checkCanceled()
+                    SearchTrace.count(SearchCounter.VALUES_DECODED)
+                    consumer(file, value)
+                    true
+                },
+                asGlobal(scope)
+            )
+            return
+        }
         RecursionManager.doPreventingRecursion(Pair(location, owner), true) {
-            val name = location.substringBefore(":")
             val desc = location.substringAfter(":")
             if (desc.contains("(")) {
                 search(name, MethodIndexKey(owner, desc), scope).forEach(consumer)
@@ -119,5 +232,29 @@ object ClassFileIndex {
         }
     }
 
+    // The files reported by one search. Copies of a class file have the same name, so the content store is only asked
+    // about a file once another file of the same name has been reported, which most hits never are. Files whose content
+    // isn't known are never copies, see ClassContentStore.
+    private class ReportedContent {
+        private val filesByName = HashMap<String, MutableList<VirtualFile>>()
+        private val contentIds = HashMap<VirtualFile, Int>()
+
+        fun isCopyOfReportedFile(file: VirtualFile): Boolean {
+            val sameName = filesByName.computeIfAbsent(file.name) { SmartList() }
+            if (file in sameName) return false
+            if (sameName.isNotEmpty()) {
+                val contentId = contentIdOf(file)
+                if (contentId != 0 && sameName.any { contentIdOf(it) == contentId }) return true
+            }
+            sameName += file
+            return false
+        }
+
+        private fun contentIdOf(file: VirtualFile) = contentIds.getOrPut(file) {
+            SearchTrace.count(SearchCounter.CONTENT_LOOKUPS)
+            ClassFileIndexExtension.contents.contentIdOf(file)
+        }
+    }
+
     private fun asGlobal(scope: SearchScope) = scope as? GlobalSearchScope ?: GlobalSearchScope.EMPTY_SCOPE.union(scope)
 }
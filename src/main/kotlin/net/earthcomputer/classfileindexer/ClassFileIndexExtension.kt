@@ -1,141 +1,77 @@
 package net.earthcomputer.classfileindexer
 
-import com.intellij.ide.highlighter.JavaClassFileType
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.progress.ProgressManager
 import com.intellij.util.indexing.DataIndexer
-import com.intellij.util.indexing.DefaultFileTypeSpecificInputFilter
-import com.intellij.util.indexing.FileBasedIndexExtension
+import com.intellij.util.indexing.FileBasedIndex
 import com.intellij.util.indexing.FileContent
 import com.intellij.util.indexing.ID
+import com.intellij.util.indexing.IndexInfrastructure
 import com.intellij.util.io.DataExternalizer
-import com.intellij.util.io.DataInputOutputUtil
-import com.intellij.util.io.KeyDescriptor
-import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.ClassReader
 import java.io.DataInput
 import java.io.DataOutput
 
-class ClassFileIndexExtension :
-    FileBasedIndexExtension<String, Map<BinaryIndexKey, Map<String, Int>>>() {
+class ClassFileIndexExtension : EnumeratedIndexExtension<ClassFileIndexValue>() {
     override fun getName() = INDEX_ID
 
-    override fun getIndexer() = DataIndexer<String, Map<BinaryIndexKey, Map<String, Int>>, FileContent> { content ->
-        val bytes = content.content
-        val cv = IndexerClassVisitor()
-        ClassReader(bytes).accept(cv, ClassReader.SKIP_FRAMES)
-        @Suppress("USELESS_CAST") // kotlin compiler bug
-        cv.index as Map<String, Map<BinaryIndexKey, Map<String, Int>>>
+    override fun getIndexer() = DataIndexer<String, ClassFileIndexValue, FileContent> { content ->
+        val cv = IndexerClassVisitor.forContent(content)
+        rootFilters.add(content.file, cv.className, cv.index.keys)
+        cv.index.mapValues { (_, value) -> ClassFileIndexValue.of(value, cv.className, cv.superName) }
     }
 
-    override fun getKeyDescriptor() = object : KeyDescriptor<String> {
-        override fun getHashCode(value: String): Int = value.hashCode()
-
-        override fun isEqual(val1: String, val2: String) = val1 == val2
-
-        override fun save(out: DataOutput, value: String) {
-            writeString(out, value)
+    override fun getValueExternalizer() = object : DataExternalizer<ClassFileIndexValue> {
+        override fun save(out: DataOutput, value: ClassFileIndexValue) {
+            ProgressManager.checkCanceled()
+            value.write(out, ::writeString)
         }
 
-        override fun read(input: DataInput) = readString(input)
-    }
-
-    override fun getValueExternalizer() = object : DataExternalizer<Map<BinaryIndexKey, Map<String, Int>>> {
-        override fun save(out: DataOutput, value: Map<BinaryIndexKey, Map<String, Int>>) {
+        override fun read(input: DataInput): ClassFileIndexValue {
             ProgressManager.checkCanceled()
-            DataInputOutputUtil.writeINT(out, value.size)
-            for ((key, counts) in value) {
-                key.write(out, ::writeString)
-                DataInputOutputUtil.writeINT(out, counts.size)
-                for ((location, count) in counts) {
-                    writeString(out, location)
-                    DataInputOutputUtil.writeINT(out, count)
-                }
-            }
+            return ClassFileIndexValue.read(input, stringReader())
         }
+    }
 
-        override fun read(input: DataInput): Map<BinaryIndexKey, Map<String, Int>> {
-            ProgressManager.checkCanceled()
-            val result = SmartMap<BinaryIndexKey, MutableMap<String, Int>>()
-            repeat(DataInputOutputUtil.readINT(input)) {
-                val key = BinaryIndexKey.read(input, ::readString)
-                val counts = SmartMap<String, Int>()
-                repeat(DataInputOutputUtil.readINT(input)) {
-                    val location = readString(input)
-                    val count = DataInputOutputUtil.readINT(input)
-                    counts[location] = count
-                }
-                result[key] = counts
+    override fun onOpen(isNewIndex: Boolean) {
+        if (!rootFilters.open(isNewIndex)) {
+            // e.g. after the IDE crashed. The index is still being registered, so the rebuild is requested once it is.
+            LOGGER.info("Library root filters are incomplete, rebuilding ${INDEX_ID.name}")
+            ApplicationManager.getApplication().invokeLater {
+                FileBasedIndex.getInstance().requestRebuild(INDEX_ID)
             }
-            return result
         }
+        contents.open(isNewIndex)
     }
 
-    override fun getVersion() = 4
+    override fun onClear() {
+        rootFilters.clear()
+        contents.clear()
+    }
 
-    override fun getInputFilter() = DefaultFileTypeSpecificInputFilter(JavaClassFileType.INSTANCE)
+    // the root filters are only saved when they are known to match the index, see LibraryRootFilters
+    override fun onDispose() {
+        rootFilters.save()
+        contents.close()
+    }
 
-    override fun dependsOnFileContent() = true
+    // the root filters must be rebuilt with the index
+    override fun getVersion() = VERSION
 
     companion object {
-//        private val LOGGER = Logger.getInstance(ClassFileIndexExtension::class.java)
-        val INDEX_ID = ID.create<String, Map<BinaryIndexKey, Map<String, Int>>>("classfileindexer.index")
-//        private const val ENUMERATOR_INITIAL_SIZE = 1024 * 4
-    }
-
-    // TODO: when all this becomes stable API...
-    // TODO: could also take advantage of custom map implementations to call ProgressManager.checkCanceled() more often
-//    private val enumeratorPath: Path = IndexInfrastructure.getIndexRootDir(INDEX_ID).resolve("classfileindexer.constpool")
-//    private var enumerator = createEnumerator()
-//
-//    private fun createEnumerator(): PersistentStringEnumerator {
-//        @Suppress("UnstableApiUsage")
-//        return PersistentStringEnumerator(enumeratorPath, ENUMERATOR_INITIAL_SIZE, true, StorageLockContext(true))
-//    }
-//
-//    private fun recreateEnumerator() {
-//        IOUtil.closeSafe(LOGGER, enumerator)
-//        IOUtil.deleteAllFilesStartingWith(enumeratorPath.toFile())
-//        enumerator = createEnumerator()
-//    }
+        private val LOGGER = Logger.getInstance(ClassFileIndexExtension::class.java)
+        val INDEX_ID = ID.create<String, ClassFileIndexValue>("classfileindexer.index")
+        const val VERSION = 13
 
-    private fun readString(input: DataInput): String {
-        return input.readUTF().intern()
-//        return enumerator.valueOf(DataInputOutputUtil.readINT(input))?.intern()
-//            ?: throw IOException("Invalid enumerated string")
-    }
+        val rootFilters by lazy {
+            @Suppress("UnstableApiUsage")
+            LibraryRootFilters(IndexInfrastructure.getIndexRootDir(INDEX_ID).resolve("${INDEX_ID.name}.rootfilters"), VERSION)
+        }
 
-    @Suppress("TooGenericExceptionCaught")
-    private fun writeString(output: DataOutput, value: String) {
-        output.writeUTF(value)
-//        try {
-//            DataInputOutputUtil.writeINT(output, enumerator.enumerate(value))
-//        } catch (e: Throwable) {
-//            recreateEnumerator()
-//            FileBasedIndex.getInstance().requestRebuild(INDEX_ID, e)
-//            throw e
-//        }
+        // lives and dies with this index, the other indexes don't need to know which files are copies of each other
+        val contents by lazy {
+            @Suppress("UnstableApiUsage")
+            ClassContentStore(IndexInfrastructure.getIndexRootDir(INDEX_ID).resolve("${INDEX_ID.name}.contents"))
+        }
     }
-
-//    @Suppress("UnstableApiUsage")
-//    override fun createIndexImplementation(
-//        extension: FileBasedIndexExtension<String, Map<BinaryIndexKey, Map<String, Int>>>,
-//        indexStorageLayout: VfsAwareIndexStorageLayout<String, Map<BinaryIndexKey, Map<String, Int>>>
-//    ) = object : VfsAwareMapReduceIndex<String, Map<BinaryIndexKey, Map<String, Int>>>(extension, indexStorageLayout, null) {
-//        override fun doClear() {
-//            super.doClear()
-//            recreateEnumerator()
-//        }
-//
-//        override fun doFlush() {
-//            super.doFlush()
-//            enumerator.force()
-//        }
-//
-//        override fun doDispose() {
-//            try {
-//                super.doDispose()
-//            } finally {
-//                IOUtil.closeSafe(LOGGER, enumerator)
-//            }
-//        }
-//    }
 }
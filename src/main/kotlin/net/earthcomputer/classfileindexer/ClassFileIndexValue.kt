@@ -0,0 +1,472 @@
+package net.earthcomputer.classfileindexer
+
+import com.intellij.util.io.DataInputOutputUtil
+import com.intellij.util.io.UnsyncByteArrayInputStream
+import com.intellij.util.io.UnsyncByteArrayOutputStream
+import java.io.DataInput
+import java.io.DataInputStream
+import java.io.DataOutput
+import java.io.DataOutputStream
+import java.io.IOException
+
+// The references to a single name from a single class file, packed into primitive arrays.
+// Owners and descriptors are indices into a string table, and locations are indices into a location table which follows it,
+// both shared by all keys of the value. The Map view is read-only and materializes keys and location maps on demand.
+// The name and superclass of the indexed class are stored alongside, so searches never have to re-read the class file.
+//
+// Values read from the index keep their serialized bytes and are decoded lazily: reading a value only decodes the key
+// directory, strings are only resolved when they are compared or returned, and the locations of a key are only decoded
+// when that key is asked for. Keys are sorted by tag, so a lookup only looks at the keys of the right type, and each key
+// carries a one byte hash of its owner and descriptor, so most non-matching keys are skipped without resolving strings.
+class ClassFileIndexValue private constructor(
+    private val stringCache: Array<String?>,
+    private val locationTableStart: Int,
+    private val classNameIndex: Int,
+    private val superNameIndex: Int,
+    private val keyTags: ByteArray,
+    private val keyHashes: ByteArray,
+    private val keyOwners: IntArray,
+    private val keyDescs: IntArray,
+    private val blocks: Array<LocationBlock?>,
+    private val source: Source?
+) : AbstractMap<BinaryIndexKey, Map<String, Int>>() {
+    val className
+        get() = stringAt(classNameIndex)
+
+    val superName
+        get() = if (superNameIndex < 0) null else stringAt(superNameIndex)
+
+    val keyCount
+        get() = keyTags.size
+
+    private val keyCache = arrayOfNulls<BinaryIndexKey>(keyTags.size)
+
+    fun keyAt(index: Int): BinaryIndexKey {
+        keyCache[index]?.let { return it }
+        val key = createKey(keyTags[index].toInt(), keyOwners[index], keyDescs[index])
+        keyCache[index] = key
+        return key
+    }
+
+    private fun createKey(tag: Int, owner: Int, desc: Int): BinaryIndexKey {
+        val key = when (tag and TAG_TYPE_MASK) {
+            ClassIndexKey.ID -> ClassIndexKey.INSTANCE
+            FieldIndexKey.ID -> FieldIndexKey(stringAt(owner), (tag and TAG_WRITE) != 0)
+            MethodIndexKey.ID -> MethodIndexKey(stringAt(owner), stringAt(desc))
+            StringConstantKey.ID -> StringConstantKey.INSTANCE
+            ImplicitToStringKey.ID -> ImplicitToStringKey.INSTANCE
+            else -> throw IOException("Unknown key tag $tag")
+        }
+        return if ((tag and TAG_DELEGATE) != 0) DelegateIndexKey(key) else key
+    }
+
+    fun indexOfKey(key: BinaryIndexKey): Int {
+        val tag = tagOf(key)
+        if (tag < 0) return -1
+        val plainKey = if (key is DelegateIndexKey) key.key else key
+        val owner = ownerOf(plainKey)
+        val desc = descOf(plainKey)
+        val hash = hashOf(owner, desc)
+        var i = firstKeyWithTag(tag)
+        while (i < keyTags.size && keyTags[i].toInt() == tag) {
+            if (keyHashes[i] == hash &&
+                (owner == null || stringAt(keyOwners[i]) == owner) &&
+                (desc == null || stringAt(keyDescs[i]) == desc)
+            ) {
+                return i
+            }
+            i++
+        }
+        return -1
+    }
+
+    private fun firstKeyWithTag(tag: Int): Int {
+        var low = 0
+        var high = keyTags.size
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            if (keyTags[mid] < tag) {
+                low = mid + 1
+            } else {
+                high = mid
+            }
+        }
+        return low
+    }
+
+    fun locationsAt(index: Int): Map<String, Int> = LocationsView(block(index))
+
+    inline fun forEachLocation(index: Int, action: (String, Int) -> Unit) {
+        val block = block(index)
+        for (i in block.locations.indices) {
+            action(locationAt(block.locations[i]), block.counts[i])
+        }
+    }
+
+    @PublishedApi
+    internal fun locationAt(location: Int) = stringAt(locationTableStart + location)
+
+    @PublishedApi
+    internal fun block(index: Int): LocationBlock {
+        blocks[index]?.let { return it }
+        val block = decodeBlock(index)
+        blocks[index] = block
+        return block
+    }
+
+    // decodes everything that is otherwise decoded on first use, throwing now if any of it is corrupt
+    fun decodeAll() {
+        for (i in stringCache.indices) {
+            stringAt(i)
+        }
+        for (i in 0 until keyCount) {
+            block(i)
+        }
+    }
+
+    private fun decodeBlock(index: Int): LocationBlock {
+        val source = source ?: throw AssertionError()
+        val start = source.blockOffsets[index]
+        val end = source.blockOffsets[index + 1]
+        // UnsyncByteArrayInputStream takes the end offset, not a length
+        val input = DataInputStream(UnsyncByteArrayInputStream(source.bytes, start, end))
+        val count = DataInputOutputUtil.readINT(input)
+        // every location takes at least one byte
+        if (count < 0 || count > input.available()) throw IOException("Corrupted index value")
+        val locations = IntArray(count)
+        val counts = IntArray(count)
+        var prevLocation = -1
+        for (i in 0 until count) {
+            readCountedDelta(input) { delta, locationCount ->
+                // a corrupt delta can overflow into a negative location
+                val location = prevLocation + delta + 1
+                if (location < 0 || location >= stringCache.size - locationTableStart) throw IOException("Corrupted index value")
+                prevLocation = location
+                locations[i] = location
+                counts[i] = locationCount
+            }
+        }
+        return LocationBlock(locations, counts)
+    }
+
+    @PublishedApi
+    internal fun stringAt(index: Int): String {
+        stringCache[index]?.let { return it }
+        val source = source ?: throw AssertionError()
+        val start = source.stringOffsets[index]
+        val end = source.stringOffsets[index + 1]
+        val input = DataInputStream(UnsyncByteArrayInputStream(source.bytes, start, end))
+        val string = source.readString(input)
+        stringCache[index] = string
+        return string
+    }
+
+    override val size
+        get() = keyCount
+
+    override fun get(key: BinaryIndexKey): Map<String, Int>? {
+        val index = indexOfKey(key)
+        return if (index < 0) null else locationsAt(index)
+    }
+
+    override fun containsKey(key: BinaryIndexKey) = indexOfKey(key) >= 0
+
+    override val entries: Set<Map.Entry<BinaryIndexKey, Map<String, Int>>> = object : AbstractSet<Map.Entry<BinaryIndexKey, Map<String, Int>>>() {
+        override val size
+            get() = keyCount
+
+        override fun iterator() = (0 until keyCount).asSequence()
+            .map { java.util.AbstractMap.SimpleImmutableEntry(keyAt(it), locationsAt(it)) }
+            .iterator()
+    }
+
+    private inner class LocationsView(private val block: LocationBlock) : AbstractMap<String, Int>() {
+        override val size
+            get() = block.locations.size
+
+        override fun get(key: String): Int? {
+            for (i in block.locations.indices) {
+                if (locationAt(block.locations[i]) == key) {
+                    return block.counts[i]
+                }
+            }
+            return null
+        }
+
+        override fun containsKey(key: String) = get(key) != null
+
+        override val entries: Set<Map.Entry<String, Int>>
+            get() = object : AbstractSet<Map.Entry<String, Int>>() {
+                override val size
+                    get() = block.locations.size
+
+                override fun iterator() = block.locations.indices.asSequence()
+                    .map { java.util.AbstractMap.SimpleImmutableEntry(locationAt(block.locations[it]), block.counts[it]) }
+                    .iterator()
+            }
+    }
+
+    // Format:
+    //   format version byte, then the length of the rest of the value
+    //   string table size, location table size, then the encoded length of each string of both tables
+    //   class name index, super name index + 1
+    //   key count, then for each key: tag byte, hash byte, owner + 1, desc + 1, location block length
+    //   the strings, encoded by writeString
+    //   the location blocks: location count, then the locations
+    // Locations of a key are sorted by their index in the location table. Each one is written as a single varint holding
+    // the delta from the previous location index, shifted left by one, with the low bit set if the count is not 1.
+    // If the low bit is set, count - 2 follows as another varint, so the common count of 1 takes no extra bytes.
+    fun write(output: DataOutput, writeString: (DataOutput, String) -> Unit) {
+        val stringBytes = UnsyncByteArrayOutputStream()
+        val stringData = DataOutputStream(stringBytes)
+        val stringLengths = IntArray(stringCache.size)
+        for (i in stringCache.indices) {
+            val start = stringData.size()
+            writeString(stringData, stringAt(i))
+            stringLengths[i] = stringData.size() - start
+        }
+
+        val blockBytes = UnsyncByteArrayOutputStream()
+        val blockData = DataOutputStream(blockBytes)
+        val blockLengths = IntArray(keyCount)
+        for (i in 0 until keyCount) {
+            val start = blockData.size()
+            val block = block(i)
+            DataInputOutputUtil.writeINT(blockData, block.locations.size)
+            var prevLocation = -1
+            for (j in block.locations.indices) {
+                writeCountedDelta(blockData, block.locations[j] - prevLocation - 1, block.counts[j])
+                prevLocation = block.locations[j]
+            }
+            blockLengths[i] = blockData.size() - start
+        }
+
+        val headerBytes = UnsyncByteArrayOutputStream()
+        val header = DataOutputStream(headerBytes)
+        DataInputOutputUtil.writeINT(header, locationTableStart)
+        DataInputOutputUtil.writeINT(header, stringCache.size - locationTableStart)
+        for (length in stringLengths) {
+            DataInputOutputUtil.writeINT(header, length)
+        }
+        DataInputOutputUtil.writeINT(header, classNameIndex)
+        DataInputOutputUtil.writeINT(header, superNameIndex + 1)
+        DataInputOutputUtil.writeINT(header, keyCount)
+        for (i in 0 until keyCount) {
+            header.writeByte(keyTags[i].toInt())
+            header.writeByte(keyHashes[i].toInt())
+            DataInputOutputUtil.writeINT(header, keyOwners[i] + 1)
+            DataInputOutputUtil.writeINT(header, keyDescs[i] + 1)
+            DataInputOutputUtil.writeINT(header, blockLengths[i])
+        }
+
+        output.writeByte(FORMAT_VERSION)
+        val length = headerBytes.size() + stringBytes.size() + blockBytes.size()
+        DataInputOutputUtil.writeINT(output, length)
+        output.write(headerBytes.toByteArray())
+        output.write(stringBytes.toByteArray())
+        output.write(blockBytes.toByteArray())
+        PluginMetrics.increment(PluginMetrics.Counter.VALUES_WRITTEN)
+        PluginMetrics.add(PluginMetrics.Counter.VALUE_BYTES_WRITTEN, length.toLong())
+        PluginMetrics.record(PluginMetrics.HistogramKind.VALUE_SIZE, length.toLong())
+    }
+
+    @PublishedApi
+    internal class LocationBlock(val locations: IntArray, val counts: IntArray)
+
+    private class Source(
+        val bytes: ByteArray,
+        val readString: (DataInput) -> String,
+        val stringOffsets: IntArray,
+        val blockOffsets: IntArray
+    )
+
+    companion object {
+        const val FORMAT_VERSION = 5
+
+        private const val TAG_TYPE_MASK = 0x0f
+        private const val TAG_WRITE = 0x10
+        private const val TAG_DELEGATE = 0x20
+
+        private fun tagOf(key: BinaryIndexKey): Int {
+            val isDelegate = key is DelegateIndexKey
+            val plainKey = if (key is DelegateIndexKey) key.key else key
+            val tag = when (plainKey) {
+                is ClassIndexKey -> ClassIndexKey.ID
+                is FieldIndexKey -> if (plainKey.isWrite) FieldIndexKey.ID or TAG_WRITE else FieldIndexKey.ID
+                is MethodIndexKey -> MethodIndexKey.ID
+                is StringConstantKey -> StringConstantKey.ID
+                is ImplicitToStringKey -> ImplicitToStringKey.ID
+                is DelegateIndexKey -> return -1
+            }
+            return if (isDelegate) tag or TAG_DELEGATE else tag
+        }
+
+        private fun ownerOf(plainKey: BinaryIndexKey) = when (plainKey) {
+            is FieldIndexKey -> plainKey.owner
+            is MethodIndexKey -> plainKey.owner
+            else -> null
+        }
+
+        private fun descOf(plainKey: BinaryIndexKey) = (plainKey as? MethodIndexKey)?.desc
+
+        private fun hashOf(owner: String?, desc: String?) = (31 * (owner?.hashCode() ?: 0) + (desc?.hashCode() ?: 0)).toByte()
+
+        fun read(input: DataInput, readString: (DataInput) -> String): ClassFileIndexValue {
+            val formatVersion = input.readUnsignedByte()
+            if (formatVersion != FORMAT_VERSION) throw IOException("Unknown index value format $formatVersion")
+            val bytes = ByteArray(DataInputOutputUtil.readINT(input))
+            input.readFully(bytes)
+
+            val stream = UnsyncByteArrayInputStream(bytes)
+            val body = DataInputStream(stream)
+            val locationTableStart = DataInputOutputUtil.readINT(body)
+            val stringCount = locationTableStart + DataInputOutputUtil.readINT(body)
+            val stringOffsets = IntArray(stringCount + 1)
+            for (i in 0 until stringCount) {
+                stringOffsets[i + 1] = stringOffsets[i] + DataInputOutputUtil.readINT(body)
+            }
+            val classNameIndex = readIndex(body, locationTableStart)
+            val superNameIndex = readOptionalIndex(body, locationTableStart)
+            val keyCount = DataInputOutputUtil.readINT(body)
+            val keyTags = ByteArray(keyCount)
+            val keyHashes = ByteArray(keyCount)
+            val keyOwners = IntArray(keyCount)
+            val keyDescs = IntArray(keyCount)
+            val blockOffsets = IntArray(keyCount + 1)
+            for (i in 0 until keyCount) {
+                keyTags[i] = body.readByte()
+                keyHashes[i] = body.readByte()
+                keyOwners[i] = readOptionalIndex(body, locationTableStart)
+                keyDescs[i] = readOptionalIndex(body, locationTableStart)
+                blockOffsets[i + 1] = blockOffsets[i] + DataInputOutputUtil.readINT(body)
+            }
+
+            val stringDataStart = bytes.size - stream.available()
+            for (i in stringOffsets.indices) {
+                stringOffsets[i] += stringDataStart
+            }
+            val blockDataStart = stringOffsets[stringCount]
+            for (i in blockOffsets.indices) {
+                blockOffsets[i] += blockDataStart
+            }
+            if (blockOffsets[keyCount] != bytes.size) throw IOException("Corrupted index value")
+
+            return ClassFileIndexValue(
+                arrayOfNulls(stringCount),
+                locationTableStart,
+                classNameIndex,
+                superNameIndex,
+                keyTags,
+                keyHashes,
+                keyOwners,
+                keyDescs,
+                arrayOfNulls(keyCount),
+                Source(bytes, readString, stringOffsets, blockOffsets)
+            )
+        }
+
+        private fun readIndex(input: DataInput, tableSize: Int): Int {
+            val index = DataInputOutputUtil.readINT(input)
+            if (index >= tableSize) throw IOException("String index out of bounds")
+            return index
+        }
+
+        private fun readOptionalIndex(input: DataInput, tableSize: Int) = readIndex(input, tableSize + 1) - 1
+
+        fun of(map: Map<BinaryIndexKey, Map<String, Int>>, className: String, superName: String?): ClassFileIndexValue {
+            val strings = TableBuilder()
+            val locationTable = TableBuilder()
+            val classNameIndex = strings.indexOf(className)
+            val superNameIndex = strings.indexOf(superName)
+
+            val sortedEntries = map.entries.sortedBy { tagOf(it.key) }
+            val keyCount = sortedEntries.size
+            val keyTags = ByteArray(keyCount)
+            val keyHashes = ByteArray(keyCount)
+            val keyOwners = IntArray(keyCount)
+            val keyDescs = IntArray(keyCount)
+            val blocks = arrayOfNulls<LocationBlock>(keyCount)
+            for ((i, entry) in sortedEntries.withIndex()) {
+                val (key, keyLocations) = entry
+                val tag = tagOf(key)
+                if (tag < 0) throw IllegalArgumentException("Nested delegate keys are not supported")
+                val plainKey = if (key is DelegateIndexKey) key.key else key
+                keyTags[i] = tag.toByte()
+                keyHashes[i] = hashOf(ownerOf(plainKey), descOf(plainKey))
+                keyOwners[i] = strings.indexOf(ownerOf(plainKey))
+                keyDescs[i] = strings.indexOf(descOf(plainKey))
+                val locations = IntArray(keyLocations.size)
+                val counts = IntArray(keyLocations.size)
+                for ((j, locationEntry) in keyLocations.entries.withIndex()) {
+                    locations[j] = locationTable.indexOf(locationEntry.key)
+                    counts[j] = locationEntry.value
+                }
+                sortLocations(locations, counts)
+                blocks[i] = LocationBlock(locations, counts)
+            }
+
+            val locationTableStart = strings.size
+            val stringCache = arrayOfNulls<String>(locationTableStart + locationTable.size)
+            strings.copyInto(stringCache, 0)
+            locationTable.copyInto(stringCache, locationTableStart)
+            return ClassFileIndexValue(
+                stringCache,
+                locationTableStart,
+                classNameIndex,
+                superNameIndex,
+                keyTags,
+                keyHashes,
+                keyOwners,
+                keyDescs,
+                blocks,
+                null
+            )
+        }
+
+        // Writes one entry of a sorted list of ids with counts, such as the locations of a key, as described in write
+        fun writeCountedDelta(output: DataOutput, delta: Int, count: Int) {
+            if (count == 1) {
+                DataInputOutputUtil.writeINT(output, delta shl 1)
+            } else {
+                DataInputOutputUtil.writeINT(output, (delta shl 1) or 1)
+                DataInputOutputUtil.writeINT(output, count - 2)
+            }
+        }
+
+        inline fun readCountedDelta(input: DataInput, action: (delta: Int, count: Int) -> Unit) {
+            val packed = DataInputOutputUtil.readINT(input)
+            action(packed ushr 1, if ((packed and 1) == 0) 1 else DataInputOutputUtil.readINT(input) + 2)
+        }
+
+        // insertion sort, the number of locations per key is small
+        fun sortLocations(locations: IntArray, counts: IntArray) {
+            for (i in 1 until locations.size) {
+                val location = locations[i]
+                val count = counts[i]
+                var j = i - 1
+                while (j >= 0 && locations[j] > location) {
+                    locations[j + 1] = locations[j]
+                    counts[j + 1] = counts[j]
+                    j--
+                }
+                locations[j + 1] = location
+                counts[j + 1] = count
+            }
+        }
+    }
+
+    private class TableBuilder {
+        private val indices = mutableMapOf<String, Int>()
+
+        val size
+            get() = indices.size
+
+        fun indexOf(string: String?) = if (string == null) -1 else indices.computeIfAbsent(string) { indices.size }
+
+        fun copyInto(table: Array<String?>, offset: Int) {
+            for ((string, index) in indices) {
+                table[offset + index] = string
+            }
+        }
+    }
+}
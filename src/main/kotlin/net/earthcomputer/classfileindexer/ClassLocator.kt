@@ -6,10 +6,8 @@ import com.intellij.psi.PsiTypeElement
 
 class ClassLocator(
     internalName: String,
-    className: String,
-    location: String,
-    index: Int
-) : DecompiledSourceElementLocator<PsiElement>(className, location, index) {
+    className: String
+) : DecompiledSourceElementLocator<PsiElement>(className) {
     private val descriptor = "L$internalName;"
 
     override fun visitTypeElement(typeElement: PsiTypeElement) {
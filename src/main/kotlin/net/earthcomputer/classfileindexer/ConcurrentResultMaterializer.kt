@@ -0,0 +1,149 @@
+package net.earthcomputer.classfileindexer
+
+import com.intellij.openapi.application.runReadAction
+import com.intellij.openapi.progress.EmptyProgressIndicator
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.util.Processor
+import com.intellij.util.concurrency.AppExecutorUtil
+import com.intellij.util.concurrency.SensitiveProgressWrapper
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
+
+// Turns the files found by a search, along with their hits, into PSI elements on a bounded pool of worker threads.
+// Each file is looked up and materialized by a worker under its own read action, and the elements come back through a
+// queue to the searching thread, which is the only one to call the consumer, so consumers don't have to be thread safe.
+// Workers run under the searching thread's progress indicator, so cancelling the search cancels them too.
+//
+// The searching thread submits files from inside its read action, so it never waits there: when the pool is saturated it
+// materializes the file itself, and only finish, which is called after the read action, blocks on the queue. A worker never
+// waits for a read action either: if a write action is pending it hands the file back to the searching thread.
+//
+// One materializer spans all attempts of a search, and hits which were submitted before the search was restarted are
+// skipped when they are submitted again, so a restart doesn't report the same hits twice.
+class ConcurrentResultMaterializer<H, T>(
+    private val consumer: Processor<in T>,
+    private val materialize: (VirtualFile, H, MutableList<T>) -> Unit
+) {
+    private val indicator = ProgressManager.getInstance().progressIndicator ?: EmptyProgressIndicator()
+    private val results = LinkedBlockingQueue<Result<H, T>>()
+    private val inFlight = Semaphore(MAX_IN_FLIGHT_FILES)
+    private var pending = 0
+    private val submitted = HashSet<Pair<VirtualFile, H>>()
+    private val error = AtomicReference<Throwable>()
+
+    @Volatile
+    private var stopped = false
+
+    // Called in a read action. Returns false once the consumer has asked to stop.
+    @Suppress("TooGenericExceptionCaught")
+    fun submit(file: VirtualFile, hits: H): Boolean {
+        return SearchTrace.time(SearchPhase.MATERIALIZATION) {
+            if (stopped || !submitted.add(Pair(file, hits))) {
+                return@time !stopped
+            }
+            if (!drain(false)) return@time false
+            if (!inFlight.tryAcquire()) {
+                // the pool is saturated, materialize the file here rather than wait in the read action
+                deliver(Result(file, hits, null))
+                return@time !stopped
+            }
+            pending++
+            EXECUTOR.execute {
+                var result: Result<H, T> = Result(file, hits, null)
+                try {
+                    if (!stopped) {
+                        ProgressManager.getInstance().executeProcessUnderProgress(
+                            { result = materializeInReadAction(file, hits) },
+                            SensitiveProgressWrapper(indicator)
+                        )
+                    }
+                } catch (e: ProcessCanceledException) {
+                    // the search was canceled, the searching thread will notice itself
+                } catch (e: Throwable) {
+                    error.compareAndSet(null, e)
+                } finally {
+                    results.add(result)
+                }
+            }
+            drain(false)
+        }
+    }
+
+    // Called after the search's read action. Waits for all submitted files and passes the remaining elements to the consumer.
+    // Returns false if the consumer stopped.
+    fun finish(): Boolean {
+        return SearchTrace.time(SearchPhase.MATERIALIZATION) { drain(true) }
+    }
+
+    private fun materializeInReadAction(file: VirtualFile, hits: H): Result<H, T> {
+        val elements = mutableListOf<T>()
+        val success = ProgressIndicatorUtils.runInReadActionWithWriteActionPriority(
+            {
+                elements.clear()
+                materialize(file, hits, elements)
+            },
+            ProgressManager.getInstance().progressIndicator
+        )
+        return Result(file, hits, if (success) elements else null)
+    }
+
+    private fun drain(waitForAll: Boolean): Boolean {
+        while (pending > 0) {
+            val result = if (waitForAll) {
+                results.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)
+            } else {
+                results.poll()
+            }
+            ProgressManager.checkCanceled()
+            error.get()?.let { throw it }
+            if (result == null) {
+                if (waitForAll) continue else break
+            }
+            pending--
+            inFlight.release()
+            deliver(result)
+        }
+        return !stopped
+    }
+
+    private fun deliver(result: Result<H, T>) {
+        if (stopped) return
+        SearchTrace.count(SearchCounter.FILES_MATERIALIZED)
+        // a no-op when submitting, which happens in a read action already
+        runReadAction {
+            var elements = result.elements
+            if (elements == null) {
+                // the file wasn't materialized by a worker, which gave way to a write action or was never given it
+                elements = mutableListOf()
+                try {
+                    materialize(result.file, result.hits, elements)
+                } catch (e: ProcessCanceledException) {
+                    // nothing was reported from this file yet, so it is submitted again if the search is restarted
+                    submitted.remove(Pair(result.file, result.hits))
+                    throw e
+                }
+            }
+            for (element in elements) {
+                if (!consumer.process(element)) {
+                    stopped = true
+                    break
+                }
+            }
+        }
+    }
+
+    private class Result<H, T>(val file: VirtualFile, val hits: H, val elements: List<T>?)
+
+    companion object {
+        private val PARALLELISM = Runtime.getRuntime().availableProcessors()
+        private val MAX_IN_FLIGHT_FILES = PARALLELISM * 4
+        private const val POLL_INTERVAL_MS = 10L
+
+        private val EXECUTOR = AppExecutorUtil.createBoundedApplicationPoolExecutor("ClassFileIndexer result materializer", PARALLELISM)
+    }
+}
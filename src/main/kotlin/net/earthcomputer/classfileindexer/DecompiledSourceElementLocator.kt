@@ -8,52 +8,83 @@ import com.intellij.psi.PsiElement
 import com.intellij.psi.PsiEnumConstant
 import com.intellij.psi.PsiExpressionStatement
 import com.intellij.psi.PsiField
+import com.intellij.psi.PsiFile
 import com.intellij.psi.PsiMethod
 import com.intellij.psi.PsiMethodCallExpression
 import com.intellij.psi.PsiModifier
 import com.intellij.psi.PsiRecordComponent
 import com.intellij.psi.util.PsiTreeUtil
 import com.intellij.psi.util.PsiUtil
+import java.lang.ref.WeakReference
 
-open class DecompiledSourceElementLocator<T : PsiElement>(
-    val className: String,
-    private val location: String,
-    val index: Int
-) : JavaRecursiveElementVisitor() {
+// Finds the elements of a decompiled class counted by the class file index for one search target, such as the references
+// to a field. A single walk of the class finds the occurrences in every location an occurrence has been created for, and
+// its result is kept until the decompiled file changes, so a class with k usages is walked once rather than k times.
+// Only the ranges of the elements found are kept, so a locator doesn't hold on to the PSI of the decompiled file, and an
+// element is looked up at its range again when it is asked for, which is valid as long as the file hasn't changed.
+open class DecompiledSourceElementLocator<T : PsiElement>(val className: String) : JavaRecursiveElementVisitor() {
     private class ClassScope(val className: String, var anonymousClassIndex: Int = 0)
 
+    private class FoundElement(val startOffset: Int, val endOffset: Int, val elementClass: Class<out PsiElement>)
+
+    private inner class LocationMatcher(val location: String) {
+        val name = location.substringBefore(':')
+        val desc = location.substringAfter(':')
+        val isMethod = desc.contains("(")
+        var constructorCallsThis = false
+        val found = mutableListOf<FoundElement>()
+    }
+
     private val classScopeStack = java.util.ArrayDeque<ClassScope>()
-    private var foundElement: T? = null
-    private var foundCount = 0
-    val locationName = location.substringBefore(':')
-    val locationDesc = location.substringAfter(':')
-    val locationIsMethod = locationDesc.contains("(")
-    private var constructorCallsThis = false
 
-    override fun toString() = "${javaClass.simpleName}($className, $location, $index)"
+    // guarded by this, along with the walk state
+    private val matchers = LinkedHashMap<String, LocationMatcher>()
+    private var walkedFile: WeakReference<PsiFile>? = null
+    private var walkedStamp = 0L
+    private var walkedLocationCount = 0
 
-    open fun findElement(clazz: PsiClass): T? {
-        foundElement = null
-        foundCount = 0
-        constructorCallsThis = false
-        withSlowOperationsIfNecessary {
-            clazz.accept(this)
+    override fun toString() = "${javaClass.simpleName}($className)"
+
+    // Creates the occurrence with the given index in the given location. Occurrences should be created before any is
+    // looked up, a location added later causes another walk.
+    fun occurrence(location: String, index: Int): DecompiledOccurrence<T> {
+        synchronized(this) {
+            matchers.getOrPut(location) { LocationMatcher(location) }
         }
-        return foundElement
+        return DecompiledOccurrence(this, location, index)
     }
 
-    protected fun matchElement(element: T) {
-        if (isInLocation(element) && foundCount++ == index) {
-            foundElement = element
+    fun findElement(clazz: PsiClass, location: String, index: Int): T? {
+        synchronized(this) {
+            val file = clazz.containingFile
+            if (walkedFile?.get() != file || walkedStamp != file.modificationStamp || walkedLocationCount != matchers.size) {
+                for (matcher in matchers.values) {
+                    matcher.found.clear()
+                    matcher.constructorCallsThis = false
+                }
+                val start = System.nanoTime()
+                withSlowOperationsIfNecessary {
+                    walk(clazz)
+                }
+                PluginMetrics.increment(PluginMetrics.Counter.LOCATOR_WALKS)
+                PluginMetrics.record(PluginMetrics.HistogramKind.LOCATOR_WALK, System.nanoTime() - start)
+                walkedFile = WeakReference(file)
+                walkedStamp = file.modificationStamp
+                walkedLocationCount = matchers.size
+            }
+            val found = matchers[location]?.found?.getOrNull(index) ?: return null
+            @Suppress("UNCHECKED_CAST")
+            return PsiTreeUtil.findElementOfClassAtRange(file, found.startOffset, found.endOffset, found.elementClass) as T?
         }
     }
 
-    private fun isInClassLocation(): Boolean {
-        return classScopeStack.descendingIterator().asSequence()
-            .joinToString("\$") { it.className } == className
+    // Subclasses look up their search target here before walking
+    protected open fun walk(clazz: PsiClass) {
+        classScopeStack.clear()
+        clazz.accept(this)
     }
 
-    private fun isInLocation(element: PsiElement): Boolean {
+    protected fun matchElement(element: T) {
         val parent = PsiTreeUtil.getParentOfType(
             element,
             PsiMethod::class.java,
@@ -61,25 +92,41 @@ open class DecompiledSourceElementLocator<T : PsiElement>(
             PsiRecordComponent::class.java,
             PsiClass::class.java,
             PsiClassInitializer::class.java
-        ) ?: return false
+        ) ?: return
         if (!isInClassLocation()) {
-            return false
+            return
+        }
+        var found: FoundElement? = null
+        for (matcher in matchers.values) {
+            if (isInLocation(matcher, element, parent)) {
+                val range = element.textRange
+                found = found ?: FoundElement(range.startOffset, range.endOffset, element.javaClass)
+                matcher.found += found
+            }
         }
+    }
+
+    private fun isInClassLocation(): Boolean {
+        return classScopeStack.descendingIterator().asSequence()
+            .joinToString("\$") { it.className } == className
+    }
+
+    private fun isInLocation(matcher: LocationMatcher, element: PsiElement, parent: PsiElement): Boolean {
         when (parent) {
             is PsiMethod -> {
-                if (!locationIsMethod) {
+                if (!matcher.isMethod) {
                     return false
                 }
                 if (parent.isConstructor) {
-                    if (locationName != "<init>") {
+                    if (matcher.name != "<init>") {
                         return false
                     }
                 } else {
-                    if (locationName != parent.name) {
+                    if (matcher.name != parent.name) {
                         return false
                     }
                 }
-                return isDescriptorOfMethodType(locationDesc, parent)
+                return isDescriptorOfMethodType(matcher.desc, parent)
             }
             is PsiField -> {
                 val initializer = parent.initializer
@@ -90,40 +137,40 @@ open class DecompiledSourceElementLocator<T : PsiElement>(
                             (enumConstantArgs != null && PsiTreeUtil.isAncestor(enumConstantArgs, element, false))
                         )
                 if (isInInitializer) {
-                    if (!locationIsMethod) {
+                    if (!matcher.isMethod) {
                         return false
                     }
                     val isStatic = parent.hasModifierProperty(PsiModifier.STATIC) || parent is PsiEnumConstant
                     return if (isStatic) {
-                        locationName == "<clinit>"
+                        matcher.name == "<clinit>"
                     } else {
-                        locationName == "<init>" && !constructorCallsThis
+                        matcher.name == "<init>" && !matcher.constructorCallsThis
                     }
                 } else {
-                    if (locationIsMethod || locationName.isEmpty()) {
+                    if (matcher.isMethod || matcher.name.isEmpty()) {
                         return false
                     }
-                    return parent.name == locationName && isDescriptorOfType(locationDesc, parent.type)
+                    return parent.name == matcher.name && isDescriptorOfType(matcher.desc, parent.type)
                 }
             }
             is PsiRecordComponent -> {
-                if (locationIsMethod || locationName.isEmpty()) {
+                if (matcher.isMethod || matcher.name.isEmpty()) {
                     return false
                 }
-                return parent.name == locationName && isDescriptorOfType(locationDesc, parent.type)
+                return parent.name == matcher.name && isDescriptorOfType(matcher.desc, parent.type)
             }
             is PsiClass -> {
-                return locationName.isEmpty()
+                return matcher.name.isEmpty()
             }
             is PsiClassInitializer -> {
-                if (!locationIsMethod) {
+                if (!matcher.isMethod) {
                     return false
                 }
                 val isStatic = parent.hasModifierProperty(PsiModifier.STATIC)
                 return if (isStatic) {
-                    locationName == "<clinit>"
+                    matcher.name == "<clinit>"
                 } else {
-                    locationName == "<init>" && !constructorCallsThis
+                    matcher.name == "<init>" && !matcher.constructorCallsThis
                 }
             }
             else -> throw AssertionError()
@@ -142,17 +189,10 @@ open class DecompiledSourceElementLocator<T : PsiElement>(
     override fun visitClass(clazz: PsiClass) {
         classScopeStack.push(ClassScope(clazz.name ?: return))
         try {
-            if (locationIsMethod && locationName == "<init>" && isInClassLocation()) {
-                for (constructor in clazz.constructors) {
-                    if (isDescriptorOfMethodType(locationDesc, constructor)) {
-                        val firstStatement = constructor.body?.statements?.getOrNull(0) ?: break
-                        val firstExpression = (firstStatement as? PsiExpressionStatement)?.expression ?: break
-                        val firstMethodExpression = (firstExpression as? PsiMethodCallExpression)?.methodExpression ?: break
-                        val methodName = firstMethodExpression.referenceName ?: break
-                        if (methodName == "this") {
-                            constructorCallsThis = true
-                        }
-                        break
+            if (isInClassLocation()) {
+                for (matcher in matchers.values) {
+                    if (matcher.isMethod && matcher.name == "<init>") {
+                        matcher.constructorCallsThis = callsThis(clazz, matcher.desc)
                     }
                 }
             }
@@ -161,4 +201,29 @@ open class DecompiledSourceElementLocator<T : PsiElement>(
             classScopeStack.pop()
         }
     }
+
+    private fun callsThis(clazz: PsiClass, constructorDesc: String): Boolean {
+        val constructor = clazz.constructors.firstOrNull { isDescriptorOfMethodType(constructorDesc, it) } ?: return false
+        val firstStatement = constructor.body?.statements?.getOrNull(0) ?: return false
+        val firstExpression = (firstStatement as? PsiExpressionStatement)?.expression ?: return false
+        val firstMethodExpression = (firstExpression as? PsiMethodCallExpression)?.methodExpression ?: return false
+        return firstMethodExpression.referenceName == "this"
+    }
+}
+
+// The index-th element counted by the class file index in one location of a decompiled class
+class DecompiledOccurrence<T : PsiElement>(
+    private val locator: DecompiledSourceElementLocator<T>,
+    private val location: String,
+    val index: Int
+) {
+    val className
+        get() = locator.className
+    val locationName = location.substringBefore(':')
+    val locationDesc = location.substringAfter(':')
+    val locationIsMethod = locationDesc.contains("(")
+
+    fun findElement(clazz: PsiClass) = locator.findElement(clazz, location, index)
+
+    override fun toString() = "$locator($location, $index)"
 }
@@ -0,0 +1,40 @@
+package net.earthcomputer.classfileindexer
+
+// Walks field and method descriptors in place, reporting object types as ranges of the descriptor string, so the visitors
+// don't need to allocate an ASM Type, a Type[] or a substring per type.
+object Descriptors {
+    // Calls the action with the start and end of the internal name of every object type in the descriptor, including the
+    // element types of arrays and the parameter and return types of method descriptors
+    inline fun forEachObjectType(desc: String, action: (start: Int, end: Int) -> Unit) {
+        var i = 0
+        while (i < desc.length) {
+            if (desc[i] == 'L') {
+                val end = desc.indexOf(';', i + 1)
+                if (end < 0) return
+                action(i + 1, end)
+                i = end + 1
+            } else {
+                i++
+            }
+        }
+    }
+
+    // Whether the object type whose name starts at the given index is the element type of an array
+    fun isArrayElement(desc: String, nameStart: Int) = nameStart >= 2 && desc[nameStart - 2] == '['
+
+    // Calls the action with the size in local variable slots of each parameter of a method descriptor
+    inline fun forEachParameterSize(methodDesc: String, action: (size: Int) -> Unit) {
+        var i = 1
+        while (i < methodDesc.length && methodDesc[i] != ')') {
+            val start = i
+            while (methodDesc[i] == '[') i++
+            if (methodDesc[i] == 'L') {
+                i = methodDesc.indexOf(';', i) + 1
+                if (i == 0) return
+            } else {
+                i++
+            }
+            action(if (i - start == 1 && (methodDesc[start] == 'J' || methodDesc[start] == 'D')) 2 else 1)
+        }
+    }
+}
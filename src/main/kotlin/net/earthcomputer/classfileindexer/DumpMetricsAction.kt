@@ -0,0 +1,68 @@
+package net.earthcomputer.classfileindexer
+
+import com.intellij.notification.NotificationGroupManager
+import com.intellij.notification.NotificationType
+import com.intellij.openapi.actionSystem.AnAction
+import com.intellij.openapi.actionSystem.AnActionEvent
+import com.intellij.openapi.application.PathManager
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.project.DumbAware
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+
+// Writes a snapshot of PluginMetrics as JSON to the log directory, so it can be attached to a bug report
+class DumpMetricsAction : AnAction(), DumbAware {
+    override fun actionPerformed(e: AnActionEvent) {
+        val timestamp = SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ROOT).format(Date())
+        val file = PathManager.getLogDir().resolve("classfileindexer-metrics-$timestamp.json")
+        try {
+            write(file)
+        } catch (ex: IOException) {
+            LOGGER.warn("Failed to write metrics to $file", ex)
+            notify(e, "Failed to write metrics: ${ex.message}", NotificationType.ERROR)
+            return
+        }
+        notify(e, "Wrote metrics to $file", NotificationType.INFORMATION)
+    }
+
+    private fun write(file: Path) {
+        val json = buildString {
+            append("{\n  \"counters\": {")
+            for ((i, entry) in PluginMetrics.counters().entries.withIndex()) {
+                if (i != 0) append(',')
+                append("\n    \"").append(entry.key).append("\": ").append(entry.value)
+            }
+            append("\n  },\n  \"histograms\": {")
+            for ((i, entry) in PluginMetrics.histograms().entries.withIndex()) {
+                if (i != 0) append(',')
+                val histogram = entry.value
+                append("\n    \"").append(entry.key).append("\": { ")
+                append("\"count\": ").append(histogram.count)
+                append(", \"sum\": ").append(histogram.sum)
+                append(", \"p50\": ").append(histogram.p50)
+                append(", \"p95\": ").append(histogram.p95)
+                append(", \"p99\": ").append(histogram.p99)
+                append(", \"max\": ").append(histogram.max)
+                append(" }")
+            }
+            append("\n  }\n}\n")
+        }
+        Files.createDirectories(file.parent)
+        Files.writeString(file, json)
+    }
+
+    private fun notify(e: AnActionEvent, content: String, type: NotificationType) {
+        NotificationGroupManager.getInstance().getNotificationGroup(NOTIFICATION_GROUP)
+            .createNotification(content, type)
+            .notify(e.project)
+    }
+
+    companion object {
+        private val LOGGER = Logger.getInstance(DumpMetricsAction::class.java)
+        const val NOTIFICATION_GROUP = "Class File Indexer"
+    }
+}
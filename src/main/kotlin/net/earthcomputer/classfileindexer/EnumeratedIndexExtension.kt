@@ -0,0 +1,106 @@
+package net.earthcomputer.classfileindexer
+
+import com.intellij.ide.highlighter.JavaClassFileType
+import com.intellij.util.indexing.CustomImplementationFileBasedIndexExtension
+import com.intellij.util.indexing.DefaultFileTypeSpecificInputFilter
+import com.intellij.util.indexing.FileBasedIndexExtension
+import com.intellij.util.indexing.IndexInfrastructure
+import com.intellij.util.indexing.impl.storage.VfsAwareMapReduceIndex
+import com.intellij.util.indexing.storage.VfsAwareIndexStorageLayout
+import com.intellij.util.io.KeyDescriptor
+import java.io.DataInput
+import java.io.DataOutput
+import java.nio.file.Files
+
+// Base for the class file indexes, whose keys and values store their strings in an IndexStringEnumerator
+abstract class EnumeratedIndexExtension<V> :
+    FileBasedIndexExtension<String, V>(),
+    CustomImplementationFileBasedIndexExtension<String, V> {
+
+    private val stringsPath by lazy {
+        @Suppress("UnstableApiUsage")
+        IndexInfrastructure.getIndexRootDir(name).resolve("${name.name}.constpool")
+    }
+
+    protected val strings by lazy {
+        IndexStringEnumerator(name, stringsPath)
+    }
+
+    // called when the index is opened, cleared and disposed, for extensions which keep other data next to the index
+    protected open fun onOpen(isNewIndex: Boolean) {}
+
+    protected open fun onClear() {}
+
+    protected open fun onDispose() {}
+
+    protected fun readString(input: DataInput) = strings.readString(input)
+
+    // for values which resolve their strings after they have been read
+    protected fun stringReader() = strings.reader()
+
+    protected fun writeString(output: DataOutput, value: String) = strings.writeString(output, value)
+
+    // for values which write the ids of their strings themselves
+    protected fun enumerate(value: String) = strings.enumerate(value)
+
+    protected fun valueOf(id: Int) = strings.valueOf(id)
+
+    override fun getKeyDescriptor() = object : KeyDescriptor<String> {
+        override fun getHashCode(value: String): Int = value.hashCode()
+
+        override fun isEqual(val1: String, val2: String) = val1 == val2
+
+        override fun save(out: DataOutput, value: String) {
+            writeString(out, value)
+        }
+
+        override fun read(input: DataInput) = readString(input)
+    }
+
+    override fun getInputFilter() = DefaultFileTypeSpecificInputFilter(JavaClassFileType.INSTANCE)
+
+    override fun dependsOnFileContent() = true
+
+    // The enumerator is created together with the index storage, and deleted with the rest of the index directory when the
+    // index is rebuilt, so if it doesn't exist yet the index is new
+    private fun hasStrings(): Boolean {
+        val dir = stringsPath.parent
+        val prefix = stringsPath.fileName.toString()
+        return Files.isDirectory(dir) && Files.list(dir).use { files -> files.anyMatch { it.fileName.toString().startsWith(prefix) } }
+    }
+
+    @Suppress("UnstableApiUsage")
+    override fun createIndexImplementation(
+        extension: FileBasedIndexExtension<String, V>,
+        indexStorageLayout: VfsAwareIndexStorageLayout<String, V>
+    ): VfsAwareMapReduceIndex<String, V> {
+        onOpen(!hasStrings())
+        return createIndex(extension, indexStorageLayout)
+    }
+
+    @Suppress("UnstableApiUsage")
+    private fun createIndex(
+        extension: FileBasedIndexExtension<String, V>,
+        indexStorageLayout: VfsAwareIndexStorageLayout<String, V>
+    ) = object : VfsAwareMapReduceIndex<String, V>(extension, indexStorageLayout, null) {
+        override fun doClear() {
+            super.doClear()
+            strings.recreate()
+            onClear()
+        }
+
+        override fun doFlush() {
+            super.doFlush()
+            strings.flush()
+        }
+
+        override fun doDispose() {
+            try {
+                super.doDispose()
+            } finally {
+                strings.close()
+                onDispose()
+            }
+        }
+    }
+}
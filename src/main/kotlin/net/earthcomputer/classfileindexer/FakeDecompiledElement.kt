@@ -8,33 +8,43 @@ import com.intellij.openapi.util.TextRange
 import com.intellij.pom.Navigatable
 import com.intellij.psi.PsiCompiledFile
 import com.intellij.psi.PsiElement
+import com.intellij.psi.PsiFile
 import com.intellij.psi.PsiJavaFile
 import com.intellij.psi.PsiReference
 import com.intellij.psi.PsiReferenceBase
 import com.intellij.psi.impl.FakePsiElement
 import com.intellij.usageView.UsageTreeColors
 import com.intellij.usageView.UsageTreeColorsScheme
-import com.intellij.usageView.UsageViewUtil
 import com.intellij.usages.TextChunk
-import com.intellij.usages.UsageInfo2UsageAdapter
-import com.intellij.usages.impl.UsagePreviewPanel
 import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.Type
-import java.util.stream.Collectors
+import java.lang.ref.WeakReference
 
 open class FakeDecompiledElement<T : PsiElement>(
     private val id: Int,
     protected val file: PsiCompiledFile,
     private val myParent: PsiElement,
-    private val locator: DecompiledSourceElementLocator<T>,
+    private val occurrence: DecompiledOccurrence<T>,
 ) : FakePsiElement(), Navigatable, IHasNavigationOffset, IHasCustomDescription {
 
     companion object {
         private val LOGGER = Logger.getInstance(FakeDecompiledElement::class.java)
-        private val USAGE_VIEW_UTIL: String = UsageViewUtil::class.java.name
-        private val USAGE_INFO_2_UTIL_ADAPTER: String = UsageInfo2UsageAdapter::class.java.name
-        private val USAGE_PREVIEW_PANEL: String = UsagePreviewPanel::class.java.name
     }
 
+    private enum class ResolveState { UNRESOLVED, RESOLVED, NOT_FOUND }
+
+    // The located element's range, and its range starting at the element's text offset, as of a modification stamp of the
+    // decompiled file. Only ever replaced as a whole, so readers on other threads see a consistent state.
+    private class ResolvedRange(
+        val state: ResolveState,
+        val file: WeakReference<PsiFile>?,
+        val stamp: Long,
+        val range: TextRange?,
+        val cursorRange: TextRange?
+    )
+
+    @Volatile
+    private var resolvedRange = ResolvedRange(ResolveState.UNRESOLVED, null, 0, null, null)
+
     fun createReference(target: PsiElement): PsiReference {
         val self = this
         val ref = PsiReferenceBase.createSelfReference(this, target)
@@ -61,35 +71,47 @@ open class FakeDecompiledElement<T : PsiElement>(
 
     override fun getTextRange() = getTextRange(false)
 
+    // The range is only real when the usage view navigates to or highlights the usage. Everywhere else, such as while the
+    // usage tree is rendered and sorted, a distinct placeholder keeps the usages apart without decompiling the class.
     private fun getTextRange(shiftForCursor: Boolean): TextRange {
-        val stackFrames = StackWalker.getInstance().walk { stream ->
-            stream.dropWhile { !it.className.startsWith("com.intellij.") }
-                .dropWhile { it.methodName == "getNavigationOffset" || it.methodName == "getNavigationRange" }
-                .limit(2)
-                .collect(Collectors.toList())
-        } ?: return TextRange(id * 2, id * 2 + 1)
-        val reason = stackFrames.firstOrNull() ?: return TextRange(id * 2, id * 2 + 1)
-        val reasonClass = reason.className
-        val methodName = reason.methodName
-        val isHighlightMethod = reasonClass == USAGE_PREVIEW_PANEL && methodName == "highlight"
-        return if ((reasonClass == USAGE_VIEW_UTIL && methodName == "navigateTo") ||
-            (reasonClass == USAGE_INFO_2_UTIL_ADAPTER && methodName == "getDescriptor") ||
-            isHighlightMethod
+        val caller = NavigationCallers.innermost() ?: return TextRange(id * 2, id * 2 + 1)
+        val isHighlight = caller == NavigationCallers.HIGHLIGHT
+        if (caller != NavigationCallers.NAVIGATE_TO && caller != NavigationCallers.GET_DESCRIPTOR && !isHighlight) {
+            return TextRange(id * 2, id * 2 + 1)
+        }
+        val resolved = resolveRange()
+        if (resolved.state != ResolveState.RESOLVED) {
+            return TextRange(id * 2, id * 2 + 1)
+        }
+        return if (shiftForCursor ||
+            isHighlight ||
+            (caller == NavigationCallers.GET_DESCRIPTOR && NavigationCallers.outer() == NavigationCallers.OPEN_TEXT_EDITOR)
         ) {
-            val element = findElement() ?: return TextRange(id * 2, id * 2 + 1)
-            val range = element.textRange ?: return TextRange(id * 2, id * 2 + 1)
-            val secondFrame = stackFrames.getOrNull(1) ?: return TextRange(id * 2, id * 2 + 1)
-            if (shiftForCursor ||
-                isHighlightMethod ||
-                (secondFrame.className == USAGE_INFO_2_UTIL_ADAPTER && secondFrame.methodName == "openTextEditor")
-            ) {
-                range.shiftRight(element.textOffset - range.startOffset)
-            } else {
-                range
-            }
+            resolved.cursorRange!!
+        } else {
+            resolved.range!!
+        }
+    }
+
+    private fun resolveRange(): ResolvedRange {
+        val decompiledFile = file.decompiledPsiFile
+        val cached = resolvedRange
+        if (cached.state != ResolveState.UNRESOLVED &&
+            cached.file?.get() == decompiledFile &&
+            cached.stamp == decompiledFile.modificationStamp
+        ) {
+            return cached
+        }
+        val element = findElement(decompiledFile)
+        val range = element?.textRange
+        val resolved = if (element == null || range == null) {
+            ResolvedRange(ResolveState.NOT_FOUND, WeakReference(decompiledFile), decompiledFile.modificationStamp, null, null)
         } else {
-            TextRange(id * 2, id * 2 + 1)
+            val cursorRange = range.shiftRight(element.textOffset - range.startOffset)
+            ResolvedRange(ResolveState.RESOLVED, WeakReference(decompiledFile), decompiledFile.modificationStamp, range, cursorRange)
         }
+        resolvedRange = resolved
+        return resolved
     }
 
     override fun getTextRangeInParent() = textRange
@@ -106,7 +128,7 @@ open class FakeDecompiledElement<T : PsiElement>(
 
     override fun getCustomDescription(): Array<TextChunk> {
         val colorScheme = UsageTreeColorsScheme.getInstance().scheme
-        val ret = mutableListOf(TextChunk(UsageTreeColors.NUMBER_OF_USAGES_ATTRIBUTES.toTextAttributes(), "#${locator.index + 1}"))
+        val ret = mutableListOf(TextChunk(UsageTreeColors.NUMBER_OF_USAGES_ATTRIBUTES.toTextAttributes(), "#${occurrence.index + 1}"))
 
         fun makePresentableType(type: Type): List<TextChunk> {
             val plainType = if (type.sort == Type.ARRAY) {
@@ -129,9 +151,9 @@ open class FakeDecompiledElement<T : PsiElement>(
             }
         }
 
-        val methodType = if (locator.locationIsMethod) Type.getMethodType(locator.locationDesc) else null
+        val methodType = if (occurrence.locationIsMethod) Type.getMethodType(occurrence.locationDesc) else null
 
-        when (locator.locationName) {
+        when (occurrence.locationName) {
             "" -> {
                 ret += TextChunk(TextAttributes(), "Class scope")
             }
@@ -145,15 +167,15 @@ open class FakeDecompiledElement<T : PsiElement>(
                     colorScheme.getAttributes(
                         JavaHighlightingColors.CONSTRUCTOR_DECLARATION_ATTRIBUTES
                     ),
-                    locator.className.replace('$', '.')
+                    occurrence.className.replace('$', '.')
                 )
             }
             else -> {
                 if (methodType != null) {
                     ret.addAll(makePresentableType(methodType.returnType))
                     ret += TextChunk(TextAttributes(), " ")
-                } else if (locator.locationDesc.isNotEmpty()) {
-                    ret.addAll(makePresentableType(Type.getType(locator.locationDesc)))
+                } else if (occurrence.locationDesc.isNotEmpty()) {
+                    ret.addAll(makePresentableType(Type.getType(occurrence.locationDesc)))
                     ret += TextChunk(TextAttributes(), " ")
                 }
 
@@ -162,11 +184,11 @@ open class FakeDecompiledElement<T : PsiElement>(
                 } else {
                     colorScheme.getAttributes(JavaHighlightingColors.INSTANCE_FIELD_ATTRIBUTES)
                 }
-                ret += TextChunk(nameAttr, locator.locationName)
+                ret += TextChunk(nameAttr, occurrence.locationName)
             }
         }
 
-        if (methodType != null && locator.locationName != "<clinit>") {
+        if (methodType != null && occurrence.locationName != "<clinit>") {
             ret += TextChunk(colorScheme.getAttributes(JavaHighlightingColors.PARENTHESES), "(")
             val argTypes = methodType.argumentTypes
             argTypes.asSequence().map {
@@ -191,15 +213,15 @@ open class FakeDecompiledElement<T : PsiElement>(
         return ret.toTypedArray()
     }
 
-    private fun findElement(): T? {
-        val clazz = (file.decompiledPsiFile as? PsiJavaFile)?.classes?.firstOrNull()
+    private fun findElement(decompiledFile: PsiFile = file.decompiledPsiFile): T? {
+        val clazz = (decompiledFile as? PsiJavaFile)?.classes?.firstOrNull()
         if (clazz == null) {
             LOGGER.warn("Could not find class inside PsiCompiledFile")
             return null
         }
-        val foundElement = locator.findElement(clazz)
+        val foundElement = occurrence.findElement(clazz)
         if (foundElement == null) {
-            LOGGER.warn("Could not locate element at $locator")
+            LOGGER.warn("Could not locate element at $occurrence")
         }
         return foundElement
     }
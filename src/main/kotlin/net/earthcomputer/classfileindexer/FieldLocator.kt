@@ -10,16 +10,14 @@ import com.intellij.psi.util.PsiUtil
 class FieldLocator(
     private val fieldPtr: SmartPsiElementPointer<PsiField>,
     private val isWrite: Boolean,
-    className: String,
-    location: String,
-    index: Int
-) : DecompiledSourceElementLocator<PsiElement>(className, location, index) {
+    className: String
+) : DecompiledSourceElementLocator<PsiElement>(className) {
     private var field: PsiField? = null
 
-    override fun findElement(clazz: PsiClass): PsiElement? {
-        field = fieldPtr.element ?: return null
+    override fun walk(clazz: PsiClass) {
+        field = fieldPtr.element ?: return
         try {
-            return super.findElement(clazz)
+            super.walk(clazz)
         } finally {
             field = null
         }
@@ -13,16 +13,14 @@ import com.intellij.psi.util.InheritanceUtil
 
 class ImplicitToStringLocator(
     private val baseClassPtr: SmartPsiElementPointer<PsiClass>,
-    className: String,
-    location: String,
-    index: Int
-) : DecompiledSourceElementLocator<PsiExpression>(className, location, index) {
+    className: String
+) : DecompiledSourceElementLocator<PsiExpression>(className) {
     private var baseClass: PsiClass? = null
 
-    override fun findElement(clazz: PsiClass): PsiExpression? {
-        baseClass = baseClassPtr.element ?: return null
+    override fun walk(clazz: PsiClass) {
+        baseClass = baseClassPtr.element ?: return
         try {
-            return super.findElement(clazz)
+            super.walk(clazz)
         } finally {
             baseClass = null
         }
@@ -8,18 +8,46 @@ import com.intellij.psi.PsiCompiledFile
 import com.intellij.psi.PsiExpression
 import com.intellij.psi.PsiType
 import com.intellij.psi.SmartPointerManager
+import com.intellij.psi.SmartPsiElementPointer
 import com.intellij.psi.search.searches.ClassInheritorsSearch
 import com.intellij.psi.search.searches.ImplicitToStringSearch
 import com.intellij.util.Processor
 import com.intellij.util.QueryExecutor
+import java.util.concurrent.atomic.AtomicInteger
 
 class ImplicitToStringSearchExtension : QueryExecutor<PsiExpression, ImplicitToStringSearch.SearchParameters> {
     override fun execute(
         queryParameters: ImplicitToStringSearch.SearchParameters,
         consumer: Processor<in PsiExpression>
     ): Boolean {
+        return SearchTrace.trace({ "ImplicitToStringSearch(${queryParameters.targetMethod})" }) {
+            search(queryParameters, consumer)
+        }
+    }
+
+    private fun search(
+        queryParameters: ImplicitToStringSearch.SearchParameters,
+        consumer: Processor<in PsiExpression>
+    ): Boolean {
+        var result = true
+        val project = queryParameters.targetMethod.project
+        lateinit var baseClassPtr: SmartPsiElementPointer<PsiClass>
+        val id = AtomicInteger()
+        val materializer = ConcurrentResultMaterializer<Map<String, Int>, PsiExpression>(consumer) { file, occurrences, elements ->
+            val psiFile = findCompiledFileWithoutSources(project, file) ?: return@ConcurrentResultMaterializer
+            val locator = ImplicitToStringLocator(baseClassPtr, file.nameWithoutExtension)
+            for ((location, count) in occurrences) {
+                repeat(count) { i ->
+                    elements += ImplicitToStringElement(
+                        id.getAndIncrement(),
+                        psiFile,
+                        locator.occurrence(location, i)
+                    )
+                }
+            }
+        }
         runReadActionInSmartModeWithWritePriority(
-            queryParameters.targetMethod.project,
+            project,
             {
                 queryParameters.targetMethod.isValid
             }
@@ -27,27 +55,15 @@ class ImplicitToStringSearchExtension : QueryExecutor<PsiExpression, ImplicitToS
             val files = mutableMapOf<VirtualFile, MutableMap<String, Int>>()
             val declaringClass = queryParameters.targetMethod.containingClass ?: return@scope
             addFiles(declaringClass, queryParameters, files)
-            for (inheritor in ClassInheritorsSearch.search(declaringClass)) {
-                addFiles(inheritor, queryParameters, files)
-            }
-            val baseClassPtr = SmartPointerManager.createPointer(declaringClass)
-            var id = 0
-            for ((file, occurrences) in files) {
-                val psiFile = findCompiledFileWithoutSources(declaringClass.project, file) ?: continue
-                for ((location, count) in occurrences) {
-                    repeat(count) { i ->
-                        consumer.process(
-                            ImplicitToStringElement(
-                                id++,
-                                psiFile,
-                                ImplicitToStringLocator(baseClassPtr, file.nameWithoutExtension, location, i)
-                            )
-                        )
-                    }
+            SearchTrace.time(SearchPhase.INHERITOR_SEARCH) {
+                for (inheritor in ClassInheritorsSearch.search(declaringClass)) {
+                    addFiles(inheritor, queryParameters, files)
                 }
             }
+            baseClassPtr = SmartPointerManager.createPointer(declaringClass)
+            result = files.all { (file, occurrences) -> materializer.submit(file, occurrences) }
         }
-        return true
+        return result && materializer.finish()
     }
 
     private fun addFiles(
@@ -68,8 +84,8 @@ class ImplicitToStringSearchExtension : QueryExecutor<PsiExpression, ImplicitToS
     class ImplicitToStringElement(
         id: Int,
         file: PsiCompiledFile,
-        locator: DecompiledSourceElementLocator<PsiExpression>
-    ) : FakeDecompiledElement<PsiExpression>(id, file, file, locator), PsiExpression {
+        occurrence: DecompiledOccurrence<PsiExpression>
+    ) : FakeDecompiledElement<PsiExpression>(id, file, file, occurrence), PsiExpression {
         override fun getType(): PsiType {
             return JavaPsiFacade.getElementFactory(file.project).createTypeByFQClassName(CommonClassNames.JAVA_LANG_STRING)
         }
@@ -0,0 +1,300 @@
+package net.earthcomputer.classfileindexer
+
+import com.intellij.openapi.application.PathManager
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.vfs.JarFileSystem
+import com.intellij.openapi.vfs.VfsUtilCore
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.util.io.DataInputOutputUtil
+import com.intellij.util.io.UnsyncByteArrayInputStream
+import com.intellij.util.io.UnsyncByteArrayOutputStream
+import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.ClassReader
+import java.io.DataInput
+import java.io.DataInputStream
+import java.io.DataOutput
+import java.io.DataOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardOpenOption
+import java.security.MessageDigest
+import java.util.zip.ZipFile
+
+// Prebuilt index data for library jars, so that jars shared between machines (e.g. from a Maven or Gradle cache) don't
+// have to be visited again on every machine after every cache invalidation.
+//
+// A bundle holds the IndexedClass of every class file of one jar, and is named after the size and SHA-256 of the jar's
+// content, so it applies to any copy of the jar, and jars of a size no bundle has aren't hashed. It also records the
+// versions of the indexes it was built for and is ignored if they don't match. Values are written in the same format as
+// the index, with strings inlined instead of enumerated, as enumerator ids are local to one index.
+//
+// Bundles are built with `./gradlew buildIndexBundles -PbundleJars=...`, and picked up from the directory in the
+// classfileindexer.bundles.dir system property, or from classfileindexer-bundles in the IDE system directory. The platform
+// still goes through every file of the jar, but the indexer reads its data from the bundle instead of visiting the class.
+object IndexBundles {
+    private val LOGGER = Logger.getInstance(IndexBundles::class.java)
+    private const val MAGIC = 0x43464942 // CFIB
+    private const val FORMAT_VERSION = 1
+    private const val EXTENSION = ".cfib"
+    private const val CACHE_SIZE = 16
+
+    // the versions of everything stored in a bundle
+    val indexVersion = "${ClassFileIndexExtension.VERSION}.${AccessorIndexExtension.VERSION}.${ClassFileIndexValue.FORMAT_VERSION}"
+
+    private val bundleDir by lazy {
+        System.getProperty("classfileindexer.bundles.dir")?.let { Paths.get(it) }
+            ?: PathManager.getSystemDir().resolve("classfileindexer-bundles")
+    }
+
+    // The sizes of the jars which have a bundle, read from the bundle names once, as every class file in every jar asks
+    // for its bundle. Bundles added later are only picked up after a restart.
+    private val bundledSizes: Set<Long> by lazy {
+        if (!Files.isDirectory(bundleDir)) return@lazy emptySet()
+        val sizes = try {
+            Files.list(bundleDir).use { files ->
+                files.iterator().asSequence()
+                    .map { it.fileName.toString() }
+                    .filter { it.endsWith(EXTENSION) }
+                    .mapNotNull { it.substringBefore('-').toLongOrNull() }
+                    .toHashSet()
+            }
+        } catch (e: IOException) {
+            LOGGER.warn("Failed to list the index bundles in $bundleDir", e)
+            emptySet()
+        }
+        LOGGER.info("Using index bundles from $bundleDir for ${sizes.size} jar sizes")
+        sizes
+    }
+
+    // Recently used jars, keyed by path, size and modification time, so a jar is only hashed once while its classes are
+    // indexed. The values are lazy so that threads indexing the same jar wait for one load, and other jars aren't blocked.
+    // A bundle only keeps the offsets of its entries on the heap, see Bundle.
+    private val bundles = object : LinkedHashMap<String, Lazy<Bundle?>>(CACHE_SIZE, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Lazy<Bundle?>>) = size > CACHE_SIZE
+    }
+
+    // Returns the bundled index data of a class file, or null if its jar has no bundle. Other archives, such as the jrt file
+    // system of a JDK, are not jars and never have a bundle.
+    fun find(file: VirtualFile): IndexedClass? {
+        if (bundledSizes.isEmpty()) return null
+        val fileSystem = file.fileSystem as? JarFileSystem ?: return null
+        val root = VfsUtilCore.getRootFile(file)
+        val jar = fileSystem.getLocalByEntry(root)?.toNioPath() ?: return null
+        val entryPath = VfsUtilCore.getRelativePath(file, root) ?: return null
+        val size = try {
+            if (!Files.isRegularFile(jar)) return null
+            Files.size(jar)
+        } catch (e: IOException) {
+            return null
+        }
+        if (size !in bundledSizes) return null
+        val key = try {
+            "$jar:$size:${Files.getLastModifiedTime(jar).toMillis()}"
+        } catch (e: IOException) {
+            return null
+        }
+        val bundle = synchronized(bundles) {
+            bundles.getOrPut(key) { lazy { loadBundle(jar, size) } }
+        }.value
+        return try {
+            bundle?.classAt(entryPath)
+        } catch (e: IOException) {
+            LOGGER.warn("Failed to read $entryPath from the index bundle of $jar", e)
+            null
+        }
+    }
+
+    private fun loadBundle(jar: Path, size: Long): Bundle? {
+        return try {
+            val hash = hash(jar)
+            val path = bundleDir.resolve(bundleName(size, hash))
+            if (!Files.exists(path)) return null
+            Bundle.read(path, hash)
+        } catch (e: IOException) {
+            LOGGER.warn("Failed to load the index bundle of $jar", e)
+            null
+        }
+    }
+
+    private fun bundleName(size: Long, hash: String) = "$size-$hash$EXTENSION"
+
+    fun hash(jar: Path): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        Files.newInputStream(jar).use { input ->
+            val buffer = ByteArray(DEFAULT_BUFFER_SIZE * 8)
+            while (true) {
+                val read = input.read(buffer)
+                if (read < 0) break
+                digest.update(buffer, 0, read)
+            }
+        }
+        return digest.digest().joinToString("") { "%02x".format(it) }
+    }
+
+    // Indexes every class file of a jar and writes the bundle for it into the given directory. Runs outside of the IDE.
+    fun write(jar: Path, outputDir: Path): Path {
+        val hash = hash(jar)
+        Files.createDirectories(outputDir)
+        val path = outputDir.resolve(bundleName(Files.size(jar), hash))
+        ZipFile(jar.toFile()).use { zip ->
+            val classEntries = zip.entries().asSequence().filter { !it.isDirectory && it.name.endsWith(".class") }.toList()
+            DataOutputStream(Files.newOutputStream(path).buffered()).use { output ->
+                output.writeInt(MAGIC)
+                output.writeByte(FORMAT_VERSION)
+                output.writeUTF(indexVersion)
+                output.writeUTF(hash)
+                DataInputOutputUtil.writeINT(output, classEntries.size)
+                val bytes = UnsyncByteArrayOutputStream()
+                for (entry in classEntries) {
+                    val cv = IndexerClassVisitor()
+                    ClassReader(zip.getInputStream(entry).use { it.readBytes() }).accept(cv, ClassReader.SKIP_FRAMES)
+                    bytes.reset()
+                    writeClass(DataOutputStream(bytes), cv)
+                    output.writeUTF(entry.name)
+                    DataInputOutputUtil.writeINT(output, bytes.size())
+                    bytes.writeTo(output)
+                }
+            }
+        }
+        return path
+    }
+
+    // also used to store the index data of class files with several copies, see ClassContentStore
+    fun writeClass(output: DataOutput, indexed: IndexedClass) {
+        output.writeUTF(indexed.className)
+        output.writeBoolean(indexed.superName != null)
+        indexed.superName?.let { output.writeUTF(it) }
+        DataInputOutputUtil.writeINT(output, indexed.index.size)
+        for ((name, keys) in indexed.index) {
+            output.writeUTF(name)
+            ClassFileIndexValue.of(keys, indexed.className, indexed.superName).write(output, ::writeInlineString)
+        }
+        DataInputOutputUtil.writeINT(output, indexed.accessorCallSites.size)
+        for ((accessor, locations) in indexed.accessorCallSites) {
+            output.writeUTF(accessor)
+            DataInputOutputUtil.writeINT(output, locations.size)
+            for ((location, count) in locations) {
+                output.writeUTF(location)
+                DataInputOutputUtil.writeINT(output, count)
+            }
+        }
+    }
+
+    private fun writeInlineString(output: DataOutput, value: String) = output.writeUTF(value)
+
+    private fun readInlineString(input: DataInput): String = input.readUTF().intern()
+
+    // Class data stays in the bundle file, which is mapped rather than read, until the class is indexed. Only the offset
+    // and length of each entry are kept, packed into a long.
+    private class Bundle(private val data: ByteBuffer, private val entries: Map<String, Long>) {
+        fun classAt(entryPath: String): IndexedClass? {
+            val entry = entries[entryPath] ?: return null
+            val bytes = ByteArray(entry.toInt())
+            val slice = data.duplicate()
+            slice.position((entry ushr 32).toInt())
+            slice.get(bytes)
+            return readClass(DataInputStream(UnsyncByteArrayInputStream(bytes)))
+        }
+
+        companion object {
+            // The header is checked before any class data is read, so a bundle of another format or index version is
+            // ignored as a whole instead of failing class by class
+            fun read(path: Path, expectedHash: String): Bundle? {
+                val data = FileChannel.open(path, StandardOpenOption.READ).use { channel ->
+                    if (channel.size() > Int.MAX_VALUE) {
+                        throw IOException("Index bundle for $expectedHash is too large")
+                    }
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                }
+                // DataInputStream doesn't buffer, so the position of the buffer is the position of the input
+                val buffer = data.duplicate()
+                val input = DataInputStream(ByteBufferInputStream(buffer))
+                if (input.readInt() != MAGIC) {
+                    throw IOException("Not an index bundle")
+                }
+                val formatVersion = input.readUnsignedByte()
+                if (formatVersion != FORMAT_VERSION) {
+                    LOGGER.info("Ignoring index bundle for $expectedHash of format $formatVersion")
+                    return null
+                }
+                val version = input.readUTF()
+                if (version != indexVersion) {
+                    LOGGER.info("Ignoring index bundle for $expectedHash built for index version $version")
+                    return null
+                }
+                val hash = input.readUTF()
+                if (hash != expectedHash) {
+                    throw IOException("Index bundle for $expectedHash was built for $hash")
+                }
+                val entries = HashMap<String, Long>()
+                repeat(DataInputOutputUtil.readINT(input)) {
+                    val entryPath = input.readUTF()
+                    val length = DataInputOutputUtil.readINT(input)
+                    val offset = buffer.position()
+                    if (length < 0 || length > buffer.remaining()) {
+                        throw IOException("Truncated index bundle for $expectedHash")
+                    }
+                    entries[entryPath] = (offset.toLong() shl 32) or length.toLong()
+                    buffer.position(offset + length)
+                }
+                return Bundle(data, entries)
+            }
+        }
+    }
+
+    // Reads the header and entry table of a mapped bundle, leaving the buffer positioned at what it hasn't read
+    private class ByteBufferInputStream(private val buffer: ByteBuffer) : InputStream() {
+        override fun read() = if (buffer.hasRemaining()) buffer.get().toInt() and 0xff else -1
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (len == 0) return 0
+            if (!buffer.hasRemaining()) return -1
+            val count = minOf(len, buffer.remaining())
+            buffer.get(b, off, count)
+            return count
+        }
+    }
+
+    fun readClass(input: DataInput): IndexedClass {
+        val className = input.readUTF()
+        val superName = if (input.readBoolean()) input.readUTF() else null
+        val index = SmartMap<String, Map<BinaryIndexKey, Map<String, Int>>>()
+        repeat(DataInputOutputUtil.readINT(input)) {
+            val name = input.readUTF()
+            // decoded now rather than lazily, so corrupt data falls back to visiting the class instead of failing indexing
+            index[name] = ClassFileIndexValue.read(input, ::readInlineString).also { it.decodeAll() }
+        }
+        val accessorCallSites = SmartMap<String, Map<String, Int>>()
+        repeat(DataInputOutputUtil.readINT(input)) {
+            val accessor = input.readUTF()
+            val locations = SmartMap<String, Int>()
+            repeat(DataInputOutputUtil.readINT(input)) {
+                val location = input.readUTF()
+                locations[location] = DataInputOutputUtil.readINT(input)
+            }
+            accessorCallSites[accessor] = locations
+        }
+        return BundledClass(className, superName, index, accessorCallSites)
+    }
+
+    private class BundledClass(
+        override val className: String,
+        override val superName: String?,
+        override val index: Map<String, Map<BinaryIndexKey, Map<String, Int>>>,
+        override val accessorCallSites: Map<String, Map<String, Int>>
+    ) : IndexedClass
+
+    // Writes the bundles of the given jars into a directory, e.g. `<output directory> a.jar b.jar`
+    @JvmStatic
+    fun main(args: Array<String>) {
+        require(args.size >= 2) { "Usage: IndexBundles <output directory> <jar>..." }
+        val outputDir = Paths.get(args[0])
+        for (jar in args.drop(1)) {
+            println("${write(Paths.get(jar), outputDir)} <- $jar")
+        }
+    }
+}
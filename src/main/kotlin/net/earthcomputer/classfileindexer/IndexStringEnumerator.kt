@@ -0,0 +1,112 @@
+package net.earthcomputer.classfileindexer
+
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.util.indexing.FileBasedIndex
+import com.intellij.util.indexing.ID
+import com.intellij.util.io.DataInputOutputUtil
+import com.intellij.util.io.IOUtil
+import com.intellij.util.io.PersistentStringEnumerator
+import java.io.DataInput
+import java.io.DataOutput
+import java.io.IOException
+import java.nio.file.Path
+
+// Keys and values of an index share one enumerator, so each distinct owner, descriptor and location is stored on disk once
+// and the index itself only contains small ints. The enumerator lives and dies with the index it belongs to.
+//
+// Values decode their strings lazily, possibly after the index has been cleared and the enumerator recreated, when their
+// ids mean something else or nothing at all. So every enumerator is a new generation, and values read through a reader
+// only resolve strings against the generation they were read in, throwing StaleIndexValueException once it is gone.
+class IndexStringEnumerator(private val indexId: ID<*, *>, private val path: Path) {
+    // the enumerator is null while it is being recreated
+    private class Generation(val enumerator: PersistentStringEnumerator?, val number: Int)
+
+    @Volatile
+    private var generation = Generation(createEnumerator(), 0)
+
+    private fun createEnumerator(): PersistentStringEnumerator {
+        return PersistentStringEnumerator(path, ENUMERATOR_INITIAL_SIZE, true, null)
+    }
+
+    // waits for a recreation in progress to finish
+    private fun current(): Generation {
+        val current = generation
+        if (current.enumerator != null) {
+            return current
+        }
+        synchronized(this) {
+            return generation
+        }
+    }
+
+    fun readString(input: DataInput): String {
+        return valueOf(DataInputOutputUtil.readINT(input))
+    }
+
+    fun valueOf(id: Int) = valueOf(current(), id)
+
+    fun writeString(output: DataOutput, value: String) {
+        DataInputOutputUtil.writeINT(output, enumerate(value))
+    }
+
+    // Reads strings of the current generation only, for values which resolve them after they have been read
+    fun reader(): (DataInput) -> String {
+        val readGeneration = current()
+        return { input -> valueOf(readGeneration, DataInputOutputUtil.readINT(input)) }
+    }
+
+    private fun valueOf(readGeneration: Generation, id: Int): String {
+        val value = try {
+            if (generation !== readGeneration) throw StaleIndexValueException()
+            readGeneration.enumerator!!.valueOf(id)
+        } catch (e: IOException) {
+            // the enumerator may have been closed under us
+            if (generation !== readGeneration) throw StaleIndexValueException()
+            throw e
+        }
+        if (value == null) {
+            if (generation !== readGeneration) throw StaleIndexValueException()
+            throw IOException("Invalid enumerated string $id")
+        }
+        return value.intern()
+    }
+
+    @Suppress("TooGenericExceptionCaught")
+    fun enumerate(value: String): Int {
+        try {
+            return current().enumerator!!.enumerate(value)
+        } catch (e: Throwable) {
+            recreate()
+            FileBasedIndex.getInstance().requestRebuild(indexId, e)
+            throw e
+        }
+    }
+
+    @Synchronized
+    fun recreate() {
+        val old = generation
+        // values of the old generation become stale before its enumerator goes away
+        generation = Generation(null, old.number + 1)
+        IOUtil.closeSafe(LOGGER, old.enumerator)
+        IOUtil.deleteAllFilesStartingWith(path.toFile())
+        generation = Generation(createEnumerator(), old.number + 1)
+    }
+
+    fun flush() {
+        current().enumerator!!.force()
+    }
+
+    fun close() {
+        IOUtil.closeSafe(LOGGER, current().enumerator)
+    }
+
+    companion object {
+        private val LOGGER = Logger.getInstance(IndexStringEnumerator::class.java)
+        private const val ENUMERATOR_INITIAL_SIZE = 1024 * 4
+    }
+}
+
+// Thrown when a value read from an index resolves a string after the index has been cleared. The value no longer exists,
+// so whatever was using it is canceled, like a search which is interrupted by a write action.
+class StaleIndexValueException : ProcessCanceledException()
@@ -0,0 +1,11 @@
+package net.earthcomputer.classfileindexer
+
+// What the class file indexes are computed from: the references of a class file, by name, and its synthetic accessor call
+// sites. Either an IndexerClassVisitor which has visited the class file, or a class read from an index bundle or from the
+// stored data of a copy of the class file.
+interface IndexedClass {
+    val className: String
+    val superName: String?
+    val index: Map<String, Map<BinaryIndexKey, Map<String, Int>>>
+    val accessorCallSites: Map<String, Map<String, Int>>
+}
@@ -2,7 +2,6 @@ package net.earthcomputer.classfileindexer
 
 import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.AnnotationVisitor
 import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.Opcodes
-import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.Type
 
 class IndexerAnnotationVisitor(private val cv: IndexerClassVisitor) : AnnotationVisitor(Opcodes.ASM9) {
     override fun visit(name: String?, value: Any?) {
@@ -10,7 +9,7 @@ class IndexerAnnotationVisitor(private val cv: IndexerClassVisitor) : Annotation
     }
 
     override fun visitEnum(name: String?, descriptor: String, value: String) {
-        cv.addFieldRef(Type.getType(descriptor).internalName, value, false)
+        cv.addFieldRef(cv.nameInDescriptor(descriptor, 1, descriptor.length - 1), value, false)
     }
 
     override fun visitAnnotation(name: String?, descriptor: String): AnnotationVisitor {
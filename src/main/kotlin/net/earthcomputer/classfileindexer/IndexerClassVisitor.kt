@@ -2,7 +2,10 @@ package net.earthcomputer.classfileindexer
 
 import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.progress.ProgressManager
+import com.intellij.openapi.util.Key
+import com.intellij.util.indexing.FileContent
 import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.AnnotationVisitor
+import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.ClassReader
 import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.ClassVisitor
 import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.ConstantDynamic
 import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.FieldVisitor
@@ -13,46 +16,84 @@ import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.RecordComponent
 import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.Type
 import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.TypePath
 
-class IndexerClassVisitor : ClassVisitor(Opcodes.ASM9) {
-    lateinit var className: String
-    val index = SmartMap<String, MutableMap<BinaryIndexKey, MutableMap<String, Int>>>()
-    val locationStack = java.util.ArrayDeque<String>()
+class IndexerClassVisitor : ClassVisitor(Opcodes.ASM9), IndexedClass {
+    override lateinit var className: String
+    override var superName: String? = null
 
-    private val lambdaLocationMappings = mutableMapOf<String, MutableMap<String, Int>>()
-    private val syntheticMethods = mutableSetOf<String>()
+    // Locations and references are tracked as int ordinals in primitive tables while visiting, and only turned into
+    // strings and maps once, when the index is emitted after the class has been visited
+    private val locations = LocationTable()
+    private val names = NameTable()
+    private val refs = ReferenceTable()
+    private var locationStack = IntArray(4)
+    private var locationStackSize = 0
 
-    fun addRef(name: String, key: BinaryIndexKey) {
+    private val lambdaLocationMappings = mutableMapOf<Int, MutableMap<Int, Int>>()
+
+    override val index by lazy { buildIndex() }
+    override val accessorCallSites by lazy { buildAccessorCallSites() }
+
+    private val currentLocation
+        get() = locationStack[locationStackSize - 1]
+
+    private fun pushLocation(location: Int) {
+        if (locationStackSize == locationStack.size) {
+            locationStack = locationStack.copyOf(locationStackSize * 2)
+        }
+        locationStack[locationStackSize++] = location
+    }
+
+    fun popLocation() {
+        locationStackSize--
+    }
+
+    private fun addRef(kind: Int, name: String, owner: String?, desc: String?) {
         ProgressManager.checkCanceled()
-        index.computeIfAbsent(name.intern()) { SmartMap() }.computeIfAbsent(key) { SmartMap() }.merge(locationStack.peek(), 1, Integer::sum)
+        refs.add(refs.entry(kind, name, owner, desc), currentLocation, 1)
     }
     fun addClassRef(name: String) {
-        addRef(name, ClassIndexKey.INSTANCE)
+        addRef(ClassIndexKey.ID, name, null, null)
     }
     fun addFieldRef(owner: String, name: String, isWrite: Boolean) {
-        addRef(name, FieldIndexKey(owner.intern(), isWrite))
+        addRef(fieldKind(isWrite), name, owner, null)
     }
     fun addMethodRef(owner: String, name: String, desc: String) {
-        addRef(name, MethodIndexKey(owner.intern(), desc.intern()))
+        addRef(MethodIndexKey.ID, name, owner, desc)
+    }
+    fun addImplicitToStringRef(name: String) {
+        addRef(ImplicitToStringKey.ID, name, null, null)
+    }
+
+    // the current location is a synthetic method forwarding to the given member, so its references are reported through it
+    fun addDelegateFieldRef(owner: String, name: String, isWrite: Boolean) {
+        refs.remove(refs.entry(fieldKind(isWrite), name, owner, null), currentLocation)
+        addRef(fieldKind(isWrite) or ReferenceTable.FLAG_DELEGATE, name, owner, null)
     }
-    fun addDelegateRef(name: String, key: BinaryIndexKey) {
-        index[name]?.get(key)?.remove(locationStack.peek())
-        addRef(name, DelegateIndexKey(key))
+    fun addDelegateMethodRef(owner: String, name: String, desc: String) {
+        refs.remove(refs.entry(MethodIndexKey.ID, name, owner, desc), currentLocation)
+        addRef(MethodIndexKey.ID or ReferenceTable.FLAG_DELEGATE, name, owner, desc)
+    }
+
+    private fun fieldKind(isWrite: Boolean) = if (isWrite) FieldIndexKey.ID or ReferenceTable.FLAG_WRITE else FieldIndexKey.ID
+
+    fun addAccessorCallSite(owner: String, name: String, desc: String) {
+        refs.add(refs.entry(ReferenceTable.KIND_ACCESSOR_CALL, name, owner, desc), currentLocation, 1)
     }
 
-    fun addLambdaLocationMapping(lambdaLocation: String) {
-        lambdaLocationMappings.computeIfAbsent(lambdaLocation) { mutableMapOf() }.merge(locationStack.peek(), 1, Integer::sum)
+    fun addLambdaLocationMapping(lambdaName: String, lambdaDesc: String) {
+        lambdaLocationMappings.computeIfAbsent(locations.ordinal(lambdaName, lambdaDesc)) { mutableMapOf() }
+            .merge(currentLocation, 1, Integer::sum)
     }
 
     fun addTypeDescriptor(desc: String) {
-        var type = Type.getType(desc)
-        while (type.sort == Type.ARRAY) {
-            type = type.elementType
-        }
-        if (type.sort == Type.OBJECT) {
-            addClassRef(type.internalName)
+        Descriptors.forEachObjectType(desc) { start, end ->
+            addClassRef(names.get(desc, start, end))
         }
     }
 
+    // the internal name of the object type in the given range of a descriptor
+    fun nameInDescriptor(desc: String, start: Int, end: Int) = names.get(desc, start, end)
+
 //    fun addStringConstant(cst: String) {
 //        // addRef(cst, StringConstantKey.INSTANCE)
 //    }
@@ -60,7 +101,8 @@ class IndexerClassVisitor : ClassVisitor(Opcodes.ASM9) {
         if (cst == null) return
         when (cst) {
             // is String -> addStringConstant(cst) TODO
-            is Type -> addTypeDescriptor(cst.descriptor)
+            // the parameter and return types of a method type, such as the bootstrap arguments of a lambda, aren't references
+            is Type -> if (cst.sort != Type.METHOD) addTypeDescriptor(cst.descriptor)
             is Handle -> {
                 when (cst.tag) {
                     Opcodes.H_GETFIELD, Opcodes.H_GETSTATIC -> {
@@ -88,6 +130,28 @@ class IndexerClassVisitor : ClassVisitor(Opcodes.ASM9) {
         }
     }
 
+    // The signature scanner walks signatures by index. Class names are built up in a reusable buffer, with the names of
+    // nested type arguments appended after the enclosing name and truncated away again, and only turned into strings by
+    // names, once per distinct name per class.
+    private var nameBuffer = CharArray(INITIAL_NAME_BUFFER_SIZE)
+    private var nameBufferLength = 0
+
+    private fun appendNameChar(c: Char) {
+        if (nameBufferLength == nameBuffer.size) {
+            nameBuffer = nameBuffer.copyOf(nameBuffer.size * 2)
+        }
+        nameBuffer[nameBufferLength++] = c
+    }
+    private fun appendIdentifier(sig: String, ind: Int): Int {
+        val end = skipIdentifier(sig, ind)
+        if (nameBufferLength + (end - ind) > nameBuffer.size) {
+            nameBuffer = nameBuffer.copyOf(maxOf(nameBuffer.size * 2, nameBufferLength + (end - ind)))
+        }
+        sig.toCharArray(nameBuffer, nameBufferLength, ind, end)
+        nameBufferLength += end - ind
+        return end
+    }
+
     private fun addClassSignature(sig: String) {
         addFormalTypeParameters(sig)
     }
@@ -104,7 +168,7 @@ class IndexerClassVisitor : ClassVisitor(Opcodes.ASM9) {
     }
     private fun addFormalTypeParameter(sig: String, ind: Int): Int {
         var i = ind
-        i = readIdentifier(sig, i).second
+        i = skipIdentifier(sig, i)
         if (i >= sig.length || sig[i] != ':') return i
         i++
         i = addFieldTypeSignature(sig, i, false)
@@ -125,26 +189,18 @@ class IndexerClassVisitor : ClassVisitor(Opcodes.ASM9) {
     }
     private fun addClassTypeSignature(sig: String, ind: Int, skipOuterName: Boolean): Int {
         if (ind >= sig.length || sig[ind] != 'L') return ind
-        var i = ind + 1
-        val (id, nextI) = readIdentifier(sig, i)
-        var qualifiedName = id
-        i = nextI
+        val nameStart = nameBufferLength
+        var i = appendIdentifier(sig, ind + 1)
         while (i < sig.length && sig[i] == '/') {
-            i++
-            qualifiedName += "/"
-            val (id2, nextI2) = readIdentifier(sig, i)
-            qualifiedName += id2
-            i = nextI2
+            appendNameChar('/')
+            i = appendIdentifier(sig, i + 1)
         }
         if (i < sig.length && sig[i] == '<') {
             i = addTypeArguments(sig, i)
         }
         while (i < sig.length && sig[i] == '.') {
-            i++
-            qualifiedName += "$"
-            val (id2, nextI2) = readIdentifier(sig, i)
-            qualifiedName += id2
-            i = nextI2
+            appendNameChar('$')
+            i = appendIdentifier(sig, i + 1)
             if (i < sig.length && sig[i] == '<') {
                 i = addTypeArguments(sig, i)
             }
@@ -153,8 +209,9 @@ class IndexerClassVisitor : ClassVisitor(Opcodes.ASM9) {
             i++
         }
         if (!skipOuterName) {
-            addClassRef(qualifiedName)
+            addClassRef(names.get(nameBuffer, nameStart, nameBufferLength))
         }
+        nameBufferLength = nameStart
         return i
     }
     private fun addTypeArguments(sig: String, ind: Int): Int {
@@ -184,13 +241,13 @@ class IndexerClassVisitor : ClassVisitor(Opcodes.ASM9) {
     private fun addTypeVariableSignature(sig: String, ind: Int): Int {
         if (ind >= sig.length || sig[ind] != 'T') return ind
         var i = ind + 1
-        i = readIdentifier(sig, i).second
+        i = skipIdentifier(sig, i)
         if (i < sig.length && sig[i] == ';') i++
         return i
     }
     private fun addTypeSignature(sig: String, ind: Int, skipOuterName: Boolean): Int {
         if (ind >= sig.length) return ind
-        if (BASE_TYPE_CHARS.contains(sig[ind])) return ind + 1
+        if (isBaseTypeChar(sig[ind])) return ind + 1
         return addFieldTypeSignature(sig, ind, skipOuterName)
     }
     private fun addMethodTypeSignature(sig: String) {
@@ -211,12 +268,20 @@ class IndexerClassVisitor : ClassVisitor(Opcodes.ASM9) {
             i = addFieldTypeSignature(sig, i, false)
         }
     }
-    private fun readIdentifier(sig: String, i: Int): Pair<String, Int> {
+    private fun skipIdentifier(sig: String, i: Int): Int {
         var endI = i
-        while (endI < sig.length && !ILLEGAL_SIG_CHARS.contains(sig[endI])) {
+        while (endI < sig.length && !isIllegalSigChar(sig[endI])) {
             endI++
         }
-        return sig.substring(i, endI) to endI
+        return endI
+    }
+    private fun isIllegalSigChar(c: Char) = when (c) {
+        '.', ';', '[', '/', '<', '>', ':' -> true
+        else -> false
+    }
+    private fun isBaseTypeChar(c: Char) = when (c) {
+        'B', 'C', 'D', 'F', 'I', 'J', 'S', 'Z' -> true
+        else -> false
     }
 
     override fun visit(
@@ -227,8 +292,9 @@ class IndexerClassVisitor : ClassVisitor(Opcodes.ASM9) {
         superName: String?,
         interfaces: Array<out String>?
     ) {
-        locationStack.push("")
+        pushLocation(0)
         className = name
+        this.superName = superName
         signature?.let { addClassSignature(it) }
         superName?.let { addClassRef(it) }
         interfaces?.forEach { addClassRef(it) }
@@ -250,7 +316,7 @@ class IndexerClassVisitor : ClassVisitor(Opcodes.ASM9) {
     }
 
     override fun visitRecordComponent(name: String, descriptor: String, signature: String?): RecordComponentVisitor {
-        locationStack.push("$name:$descriptor")
+        pushLocation(locations.ordinal(name, descriptor))
         addTypeDescriptor(descriptor)
         signature?.let { addFieldTypeSignature(it, 0, true) }
         return IndexerRecordComponentVisitor(this)
@@ -263,7 +329,7 @@ class IndexerClassVisitor : ClassVisitor(Opcodes.ASM9) {
         signature: String?,
         value: Any?
     ): FieldVisitor {
-        locationStack.push("$name:$descriptor")
+        pushLocation(locations.ordinal(name, descriptor))
         addTypeDescriptor(descriptor)
         signature?.let { addFieldTypeSignature(it, 0, true) }
         addConstant(value)
@@ -277,60 +343,126 @@ class IndexerClassVisitor : ClassVisitor(Opcodes.ASM9) {
         signature: String?,
         exceptions: Array<out String>?
     ): MethodVisitor {
-        locationStack.push("$name:$descriptor")
-        if ((access and Opcodes.ACC_SYNTHETIC) != 0) {
-            syntheticMethods.add(locationStack.peek())
-        }
-        val desc = Type.getMethodType(descriptor)
-        for (argumentType in desc.argumentTypes) {
-            addTypeDescriptor(argumentType.descriptor)
-        }
-        addTypeDescriptor(desc.returnType.descriptor)
+        pushLocation(locations.ordinal(name, descriptor))
+        addTypeDescriptor(descriptor)
         signature?.let { addMethodTypeSignature(it) }
         exceptions?.forEach { addClassRef(it) }
         return IndexerMethodVisitor(this, access, descriptor)
     }
 
     override fun visitEnd() {
-        locationStack.pop()
+        popLocation()
         propagateLambdaLocations()
     }
 
+    // Moves the references made inside lambdas to the locations the lambdas are created from. A lambda is only inlined once
+    // all lambdas created inside it have been inlined into it, so the lambdas are processed in topological order, and each
+    // move only touches the references of the lambda being inlined. Lambdas left over are part of a cycle.
     private fun propagateLambdaLocations() {
-        val referencedByLambda = lambdaLocationMappings.entries.asSequence()
-            .flatMap { (k, vs) -> vs.asSequence().map { v -> java.util.AbstractMap.SimpleEntry(k, v.key) } }
-            .groupByTo(mutableMapOf(), { it.value }) { it.key }
-        var changed = true
-        while (lambdaLocationMappings.isNotEmpty() && changed) {
-            changed = false
-            val lambdaLocItr = lambdaLocationMappings.iterator()
-            while (lambdaLocItr.hasNext()) {
-                val (lambdaLoc, targets) = lambdaLocItr.next()
-                if (referencedByLambda[lambdaLoc]?.isNotEmpty() == true) {
-                    continue // something still needs to be inlined into this lambda, can't inline this one yet
-                }
-                changed = true
-                lambdaLocItr.remove()
-                for ((targetLoc, countOfLambda) in targets) {
-                    referencedByLambda[targetLoc]?.remove(lambdaLoc)
-                    for (keys in index.values) {
-                        for (locations in keys.values) {
-                            val countInLambda = locations.remove(lambdaLoc) ?: continue
-                            locations.merge(targetLoc, countOfLambda * countInLambda, Integer::sum)
-                        }
-                    }
+        if (lambdaLocationMappings.isEmpty()) return
+        val pendingNestedLambdas = mutableMapOf<Int, Int>()
+        for ((lambdaLoc, targets) in lambdaLocationMappings) {
+            for (targetLoc in targets.keys) {
+                if (lambdaLocationMappings.containsKey(targetLoc)) {
+                    pendingNestedLambdas.merge(targetLoc, 1, Integer::sum)
                 }
             }
+            pendingNestedLambdas.putIfAbsent(lambdaLoc, 0)
+        }
+        val readyLambdas = java.util.ArrayDeque<Int>()
+        for ((lambdaLoc, pending) in pendingNestedLambdas) {
+            if (pending == 0) readyLambdas += lambdaLoc
+        }
+        var inlinedCount = 0
+        while (readyLambdas.isNotEmpty()) {
+            val lambdaLoc = readyLambdas.poll()
+            val targets = lambdaLocationMappings[lambdaLoc]!!
+            val targetLocs = IntArray(targets.size)
+            val multipliers = IntArray(targets.size)
+            for ((i, target) in targets.entries.withIndex()) {
+                targetLocs[i] = target.key
+                multipliers[i] = target.value
+            }
+            refs.moveLocation(lambdaLoc, targetLocs, multipliers)
+            inlinedCount++
+            for (targetLoc in targetLocs) {
+                val pending = pendingNestedLambdas[targetLoc] ?: continue
+                pendingNestedLambdas[targetLoc] = pending - 1
+                if (pending == 1) readyLambdas += targetLoc
+            }
         }
 
-        if (lambdaLocationMappings.isNotEmpty()) {
+        if (inlinedCount != lambdaLocationMappings.size) {
             LOGGER.warn("$className: unable to propagate lambda locations")
         }
     }
 
+    private fun buildIndex(): Map<String, Map<BinaryIndexKey, Map<String, Int>>> {
+        val locationStrings = locations.toStrings()
+        val keys = arrayOfNulls<BinaryIndexKey>(refs.entryCount)
+        val result = SmartMap<String, MutableMap<BinaryIndexKey, MutableMap<String, Int>>>()
+        refs.forEachCount { entry, location, count ->
+            val kind = refs.kindOf(entry)
+            if (kind != ReferenceTable.KIND_ACCESSOR_CALL) {
+                val key = keys[entry] ?: createKey(entry, kind).also { keys[entry] = it }
+                result.computeIfAbsent(refs.nameOf(entry)) { SmartMap() }
+                    .computeIfAbsent(key) { SmartMap() }[locationStrings[location]] = count
+            }
+        }
+        return result
+    }
+
+    private fun createKey(entry: Int, kind: Int): BinaryIndexKey {
+        val key = when (kind and ReferenceTable.TYPE_MASK) {
+            ClassIndexKey.ID -> ClassIndexKey.INSTANCE
+            FieldIndexKey.ID -> FieldIndexKey(refs.ownerOf(entry)!!, (kind and ReferenceTable.FLAG_WRITE) != 0)
+            MethodIndexKey.ID -> MethodIndexKey(refs.ownerOf(entry)!!, refs.descOf(entry)!!)
+            ImplicitToStringKey.ID -> ImplicitToStringKey.INSTANCE
+            else -> throw AssertionError()
+        }
+        return if ((kind and ReferenceTable.FLAG_DELEGATE) != 0) DelegateIndexKey(key) else key
+    }
+
+    private fun buildAccessorCallSites(): Map<String, Map<String, Int>> {
+        val locationStrings = locations.toStrings()
+        val result = SmartMap<String, MutableMap<String, Int>>()
+        refs.forEachCount { entry, location, count ->
+            if (refs.kindOf(entry) == ReferenceTable.KIND_ACCESSOR_CALL) {
+                val key = AccessorIndexExtension.key(refs.ownerOf(entry)!!, "${refs.nameOf(entry)}:${refs.descOf(entry)}")
+                result.computeIfAbsent(key) { SmartMap() }[locationStrings[location]] = count
+            }
+        }
+        return result
+    }
+
     companion object {
         private val LOGGER = Logger.getInstance(IndexerClassVisitor::class.java)
-        private val ILLEGAL_SIG_CHARS = setOf('.', ';', '[', '/', '<', '>', ':')
-        private val BASE_TYPE_CHARS = setOf('B', 'C', 'D', 'F', 'I', 'J', 'S', 'Z')
+        private val VISITOR_KEY = Key.create<IndexedClass>("classfileindexer.visitor")
+
+        // all class file indexes are computed from the same visitor, so each class file is only read once. Class files in
+        // jars with a prebuilt index bundle, and copies of class files which were already indexed, aren't read at all.
+        fun forContent(content: FileContent): IndexedClass {
+            content.getUserData(VISITOR_KEY)?.let { return it }
+            val bytes = content.content
+            val indexed = ClassFileIndexExtension.contents.indexedClass(content.file, bytes) {
+                IndexBundles.find(content.file)?.also {
+                    PluginMetrics.increment(PluginMetrics.Counter.CLASSES_FROM_BUNDLES)
+                } ?: visit(bytes)
+            }
+            content.putUserData(VISITOR_KEY, indexed)
+            return indexed
+        }
+
+        private fun visit(bytes: ByteArray): IndexerClassVisitor {
+            val start = System.nanoTime()
+            val visitor = IndexerClassVisitor()
+            ClassReader(bytes).accept(visitor, ClassReader.SKIP_FRAMES)
+            PluginMetrics.record(PluginMetrics.HistogramKind.INDEXER_VISIT, System.nanoTime() - start)
+            PluginMetrics.increment(PluginMetrics.Counter.CLASSES_INDEXED)
+            PluginMetrics.add(PluginMetrics.Counter.BYTES_PARSED, bytes.size.toLong())
+            return visitor
+        }
+
+        private const val INITIAL_NAME_BUFFER_SIZE = 64
     }
 }
@@ -22,6 +22,6 @@ class IndexerFieldVisitor(private val cv: IndexerClassVisitor) : FieldVisitor(Op
     }
 
     override fun visitEnd() {
-        cv.locationStack.pop()
+        cv.popLocation()
     }
 }
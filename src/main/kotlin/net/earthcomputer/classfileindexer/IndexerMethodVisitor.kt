@@ -5,7 +5,6 @@ import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.Handle
 import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.Label
 import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.MethodVisitor
 import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.Opcodes
-import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.Type
 import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.TypePath
 
 class IndexerMethodVisitor(
@@ -13,7 +12,16 @@ class IndexerMethodVisitor(
     private val access: Int,
     private val desc: String
 ) : MethodVisitor(Opcodes.ASM9) {
-    private val insns = mutableListOf<Insn>()
+    // Synthetic methods are matched against the accessor pattern while they are visited: load every parameter, access a
+    // member, return, each step optionally preceded by a checkcast. matchStep counts the steps matched so far, the loads
+    // being the first steps and accessorVars their expected variable indices. Other methods start out failed.
+    private val accessorVars = if ((access and Opcodes.ACC_SYNTHETIC) != 0) expectedAccessorVars(access, desc) else null
+    private var matchStep = if (accessorVars != null) 0 else MATCH_FAILED
+    private var skippedCheckcast = false
+    private var memberOpcode = 0
+    private var memberOwner: String? = null
+    private var memberName: String? = null
+    private var memberDesc: String? = null
 
     override fun visitAnnotationDefault(): AnnotationVisitor {
         return IndexerAnnotationVisitor(cv)
@@ -40,19 +48,18 @@ class IndexerMethodVisitor(
     }
 
     override fun visitTypeInsn(opcode: Int, type: String) {
-        var t = Type.getObjectType(type)
-        while (t.sort == Type.ARRAY) {
-            t = t.elementType
+        // an internal name, or a descriptor for array types
+        if (type.startsWith('[')) {
+            cv.addTypeDescriptor(type)
+        } else {
+            cv.addClassRef(type)
         }
-        if (t.sort == Type.OBJECT) {
-            cv.addClassRef(t.internalName)
-        }
-        insns += TypeInsn(opcode, type)
+        if (opcode == Opcodes.CHECKCAST) matchCheckcast() else failMatch()
     }
 
     override fun visitFieldInsn(opcode: Int, owner: String, name: String, descriptor: String) {
         cv.addFieldRef(owner, name, opcode == Opcodes.PUTSTATIC || opcode == Opcodes.PUTFIELD)
-        insns += MemberInsn(opcode, owner, name, descriptor)
+        matchMember(opcode, owner, name, descriptor)
     }
 
     override fun visitMethodInsn(
@@ -63,7 +70,10 @@ class IndexerMethodVisitor(
         isInterface: Boolean
     ) {
         cv.addMethodRef(owner, name, descriptor)
-        insns += MemberInsn(opcode, owner, name, descriptor)
+        if (opcode == Opcodes.INVOKESTATIC && AccessorIndexExtension.isAccessorName(name)) {
+            cv.addAccessorCallSite(owner, name, descriptor)
+        }
+        matchMember(opcode, owner, name, descriptor)
     }
 
     override fun visitInvokeDynamicInsn(
@@ -72,6 +82,7 @@ class IndexerMethodVisitor(
         bootstrapMethodHandle: Handle,
         vararg bootstrapMethodArguments: Any?
     ) {
+        failMatch()
         when (bootstrapMethodHandle.owner) {
             "java/lang/invoke/LambdaMetafactory" -> {
                 @Suppress("MagicNumber")
@@ -89,17 +100,17 @@ class IndexerMethodVisitor(
                     else -> return
                 }
                 if (invokedMethod.owner == cv.className) {
-                    cv.addLambdaLocationMapping("${invokedMethod.name}:${invokedMethod.desc}")
+                    cv.addLambdaLocationMapping(invokedMethod.name, invokedMethod.desc)
                 }
                 cv.addMethodRef(invokedMethod.owner, invokedMethod.name, invokedMethod.desc)
             }
             "java/lang/invoke/StringConcatFactory" -> {
                 when (bootstrapMethodHandle.name) {
                     "makeConcat", "makeConcatWithConstants" -> {
-                        val methodType = Type.getMethodType(descriptor)
-                        for (argumentType in methodType.argumentTypes) {
-                            if (argumentType.sort == Type.OBJECT) {
-                                cv.addRef(argumentType.internalName, ImplicitToStringKey.INSTANCE)
+                        val argumentsEnd = descriptor.lastIndexOf(')')
+                        Descriptors.forEachObjectType(descriptor) { start, end ->
+                            if (end < argumentsEnd && !Descriptors.isArrayElement(descriptor, start)) {
+                                cv.addImplicitToStringRef(cv.nameInDescriptor(descriptor, start, end))
                             }
                         }
 //                        if (bootstrapMethodHandle.name == "makeConcatWithConstants") {
@@ -112,45 +123,44 @@ class IndexerMethodVisitor(
                 }
             }
         }
-        insns += UnknownInsn(Opcodes.INVOKEDYNAMIC)
     }
 
     override fun visitLdcInsn(value: Any?) {
         cv.addConstant(value)
-        insns += UnknownInsn(Opcodes.LDC)
+        failMatch()
     }
 
     override fun visitMultiANewArrayInsn(descriptor: String, numDimensions: Int) {
         cv.addTypeDescriptor(descriptor)
-        insns += UnknownInsn(Opcodes.MULTIANEWARRAY)
+        failMatch()
     }
 
     override fun visitInsn(opcode: Int) {
-        insns += NoOperandInsn(opcode)
+        matchInsn(opcode)
     }
 
     override fun visitIntInsn(opcode: Int, operand: Int) {
-        insns += UnknownInsn(opcode)
+        failMatch()
     }
 
     override fun visitVarInsn(opcode: Int, variable: Int) {
-        insns += VarInsn(opcode, variable)
+        matchVar(variable)
     }
 
     override fun visitJumpInsn(opcode: Int, label: Label?) {
-        insns += UnknownInsn(opcode)
+        failMatch()
     }
 
     override fun visitIincInsn(variable: Int, increment: Int) {
-        insns += UnknownInsn(Opcodes.IINC)
+        failMatch()
     }
 
     override fun visitTableSwitchInsn(min: Int, max: Int, dflt: Label?, vararg labels: Label?) {
-        insns += UnknownInsn(Opcodes.TABLESWITCH)
+        failMatch()
     }
 
     override fun visitLookupSwitchInsn(dflt: Label?, keys: IntArray?, labels: Array<out Label>?) {
-        insns += UnknownInsn(Opcodes.LOOKUPSWITCH)
+        failMatch()
     }
 
     override fun visitInsnAnnotation(
@@ -202,69 +212,80 @@ class IndexerMethodVisitor(
     }
 
     override fun visitEnd() {
-        if ((access and Opcodes.ACC_SYNTHETIC) != 0) {
-            checkSyntheticPattern()
+        if (accessorVars != null && matchStep == accessorVars.size + 2) {
+            val owner = memberOwner!!
+            val name = memberName!!
+            when (memberOpcode) {
+                Opcodes.GETFIELD, Opcodes.GETSTATIC -> cv.addDelegateFieldRef(owner, name, false)
+                Opcodes.PUTFIELD, Opcodes.PUTSTATIC -> cv.addDelegateFieldRef(owner, name, true)
+                else -> cv.addDelegateMethodRef(owner, name, memberDesc!!)
+            }
         }
-        cv.locationStack.pop()
+        cv.popLocation()
     }
 
-    private fun checkSyntheticPattern() {
-        checkAccessMethod()
+    private fun failMatch() {
+        matchStep = MATCH_FAILED
     }
 
-    private fun checkAccessMethod() {
-        val methodType = Type.getMethodType(desc)
-
-        // load every parameter
-        var varIndex = 0
-        var insnIndex = 0
-        if ((access and Opcodes.ACC_STATIC) == 0) {
-            val insn = insns.firstOrNull() ?: return
-            if (insn !is VarInsn || insn.variable != 0) return
-            varIndex++
-            insnIndex++
-        }
-        for (param in methodType.argumentTypes) {
-            var insn = insns.getOrNull(insnIndex) ?: return
-            // ignore checkcasts
-            if (insn.opcode == Opcodes.CHECKCAST) insn = insns.getOrNull(++insnIndex) ?: return
-            if (insn !is VarInsn || insn.variable != varIndex) return
-            insnIndex++
-            if (param.sort == Type.DOUBLE || param.sort == Type.LONG) {
-                varIndex += 2
-            } else {
-                varIndex++
-            }
+    private fun advanceMatch() {
+        matchStep++
+        skippedCheckcast = false
+    }
+
+    // a single checkcast may precede each step except loading this
+    private fun matchCheckcast() {
+        val vars = accessorVars ?: return
+        val loadsThis = matchStep == 0 && (access and Opcodes.ACC_STATIC) == 0
+        if (matchStep == MATCH_FAILED || matchStep > vars.size + 1 || skippedCheckcast || loadsThis) {
+            failMatch()
+        } else {
+            skippedCheckcast = true
         }
+    }
 
-        // member access
-        var insn = insns.getOrNull(insnIndex) ?: return
-        // ignore checkcasts
-        if (insn.opcode == Opcodes.CHECKCAST) insn = insns.getOrNull(++insnIndex) ?: return
-        val memberInsn = insn as? MemberInsn ?: return
-        insnIndex++
-
-        // return instruction
-        insn = insns.getOrNull(insnIndex) ?: return
-        // ignore checkcasts
-        if (insn.opcode == Opcodes.CHECKCAST) insn = insns.getOrNull(++insnIndex) ?: return
-        if (insn.opcode < Opcodes.IRETURN || insn.opcode > Opcodes.RETURN) return
-        insnIndex++
-
-        // end of method
-        if (insnIndex != insns.size) return
-
-        when (memberInsn.opcode) {
-            Opcodes.GETFIELD, Opcodes.GETSTATIC -> cv.addDelegateRef(memberInsn.name, FieldIndexKey(memberInsn.owner.intern(), false))
-            Opcodes.PUTFIELD, Opcodes.PUTSTATIC -> cv.addDelegateRef(memberInsn.name, FieldIndexKey(memberInsn.owner.intern(), true))
-            else -> cv.addDelegateRef(memberInsn.name, MethodIndexKey(memberInsn.owner.intern(), memberInsn.desc.intern()))
+    private fun matchVar(variable: Int) {
+        val vars = accessorVars ?: return
+        if (matchStep in vars.indices && vars[matchStep] == variable) advanceMatch() else failMatch()
+    }
+
+    private fun matchMember(opcode: Int, owner: String, name: String, desc: String) {
+        val vars = accessorVars ?: return
+        if (matchStep == vars.size) {
+            memberOpcode = opcode
+            memberOwner = owner
+            memberName = name
+            memberDesc = desc
+            advanceMatch()
+        } else {
+            failMatch()
         }
     }
 
-    private sealed class Insn(val opcode: Int)
-    private class UnknownInsn(opcode: Int) : Insn(opcode)
-    private class VarInsn(opcode: Int, val variable: Int) : Insn(opcode)
-    private class MemberInsn(opcode: Int, val owner: String, val name: String, val desc: String) : Insn(opcode)
-    private class TypeInsn(opcode: Int, type: String) : Insn(opcode)
-    private class NoOperandInsn(opcode: Int) : Insn(opcode)
+    private fun matchInsn(opcode: Int) {
+        val vars = accessorVars ?: return
+        if (matchStep == vars.size + 1 && opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) advanceMatch() else failMatch()
+    }
+
+    companion object {
+        private const val MATCH_FAILED = -1
+
+        // the variable indices an accessor loads its parameters from, starting with this for instance methods
+        private fun expectedAccessorVars(access: Int, desc: String): IntArray {
+            val isStatic = (access and Opcodes.ACC_STATIC) != 0
+            var varCount = if (isStatic) 0 else 1
+            Descriptors.forEachParameterSize(desc) { varCount++ }
+            val vars = IntArray(varCount)
+            var varIndex = 0
+            var i = 0
+            if (!isStatic) {
+                vars[i++] = varIndex++
+            }
+            Descriptors.forEachParameterSize(desc) { size ->
+                vars[i++] = varIndex
+                varIndex += size
+            }
+            return vars
+        }
+    }
 }
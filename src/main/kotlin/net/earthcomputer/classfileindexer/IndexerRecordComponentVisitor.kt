@@ -22,6 +22,6 @@ class IndexerRecordComponentVisitor(private val cv: IndexerClassVisitor) : Recor
     }
 
     override fun visitEnd() {
-        cv.locationStack.pop()
+        cv.popLocation()
     }
 }
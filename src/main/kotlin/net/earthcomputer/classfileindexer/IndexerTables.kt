@@ -0,0 +1,303 @@
+package net.earthcomputer.classfileindexer
+
+// Primitive tables used by IndexerClassVisitor while a class file is being visited, so that recording a reference doesn't
+// allocate. The strings stored in them are the ones handed out by ClassReader, which are shared per constant pool entry,
+// so equal strings are usually identical and compare quickly.
+
+// Gives every member of the class an int ordinal. Ordinal 0 is the class itself.
+class LocationTable {
+    private var names = arrayOfNulls<String>(INITIAL_CAPACITY)
+    private var descs = arrayOfNulls<String>(INITIAL_CAPACITY)
+    private var hashTable = IntArray(INITIAL_CAPACITY * 2)
+    var size = 1
+        private set
+
+    fun ordinal(name: String, desc: String): Int {
+        val mask = hashTable.size - 1
+        var slot = (31 * name.hashCode() + desc.hashCode()) and mask
+        while (true) {
+            val ordinal = hashTable[slot] - 1
+            if (ordinal < 0) break
+            if (names[ordinal] == name && descs[ordinal] == desc) return ordinal
+            slot = (slot + 1) and mask
+        }
+        if (size == names.size) {
+            grow()
+            return ordinal(name, desc)
+        }
+        val ordinal = size++
+        names[ordinal] = name
+        descs[ordinal] = desc
+        hashTable[slot] = ordinal + 1
+        return ordinal
+    }
+
+    private fun grow() {
+        names = names.copyOf(names.size * 2)
+        descs = descs.copyOf(descs.size * 2)
+        hashTable = IntArray(names.size * 2)
+        val mask = hashTable.size - 1
+        for (ordinal in 1 until size) {
+            var slot = (31 * names[ordinal]!!.hashCode() + descs[ordinal]!!.hashCode()) and mask
+            while (hashTable[slot] != 0) {
+                slot = (slot + 1) and mask
+            }
+            hashTable[slot] = ordinal + 1
+        }
+    }
+
+    // only called when the index is emitted
+    fun toStrings() = Array(size) { if (it == 0) "" else "${names[it]}:${descs[it]}" }
+
+    companion object {
+        private const val INITIAL_CAPACITY = 16
+    }
+}
+
+// Turns names in a char buffer or a part of a string into strings, creating each distinct string only once
+class NameTable {
+    private var strings = arrayOfNulls<String>(INITIAL_CAPACITY)
+    private var size = 0
+
+    fun get(chars: CharArray, start: Int, end: Int): String {
+        var hash = 0
+        for (i in start until end) {
+            hash = 31 * hash + chars[i].code
+        }
+        return getOrCreate(hash, end - start, { chars[start + it] }) { String(chars, start, end - start) }
+    }
+
+    fun get(string: String, start: Int, end: Int): String {
+        var hash = 0
+        for (i in start until end) {
+            hash = 31 * hash + string[i].code
+        }
+        return getOrCreate(hash, end - start, { string[start + it] }) { string.substring(start, end) }
+    }
+
+    private inline fun getOrCreate(hash: Int, length: Int, charAt: (Int) -> Char, create: () -> String): String {
+        if ((size + 1) * 2 > strings.size) {
+            grow()
+        }
+        val mask = strings.size - 1
+        var slot = (hash xor (hash ushr 16)) and mask
+        while (true) {
+            val string = strings[slot] ?: break
+            if (string.hashCode() == hash && matches(string, length, charAt)) return string
+            slot = (slot + 1) and mask
+        }
+        val string = create()
+        strings[slot] = string
+        size++
+        return string
+    }
+
+    private inline fun matches(string: String, length: Int, charAt: (Int) -> Char): Boolean {
+        if (string.length != length) return false
+        for (i in 0 until length) {
+            if (string[i] != charAt(i)) return false
+        }
+        return true
+    }
+
+    private fun grow() {
+        val oldStrings = strings
+        strings = arrayOfNulls(oldStrings.size * 2)
+        val mask = strings.size - 1
+        for (string in oldStrings) {
+            if (string == null) continue
+            val hash = string.hashCode()
+            var slot = (hash xor (hash ushr 16)) and mask
+            while (strings[slot] != null) {
+                slot = (slot + 1) and mask
+            }
+            strings[slot] = string
+        }
+    }
+
+    companion object {
+        private const val INITIAL_CAPACITY = 16
+    }
+}
+
+// Interns references, identified by a kind and up to three strings, to int entries, and counts the references to each
+// entry per location ordinal. The kind is one of the BinaryIndexKey ids, optionally combined with the flags below.
+class ReferenceTable {
+    private var entryKinds = IntArray(INITIAL_CAPACITY)
+    private var entryNames = arrayOfNulls<String>(INITIAL_CAPACITY)
+    private var entryOwners = arrayOfNulls<String>(INITIAL_CAPACITY)
+    private var entryDescs = arrayOfNulls<String>(INITIAL_CAPACITY)
+    private var entryHashTable = IntArray(INITIAL_CAPACITY * 2)
+    var entryCount = 0
+        private set
+
+    // One record per (entry, location) pair, found through an open-addressed hash table of record indices. The records of
+    // each location are also chained together, so everything referenced from a location can be found without a scan.
+    // Counts of 0 mean the location has been removed.
+    private var recordEntries = IntArray(INITIAL_CAPACITY)
+    private var recordLocations = IntArray(INITIAL_CAPACITY)
+    private var recordCounts = IntArray(INITIAL_CAPACITY)
+    private var recordNextInLocation = IntArray(INITIAL_CAPACITY)
+    private var recordCount = 0
+    private var recordHashTable = IntArray(INITIAL_CAPACITY * 2)
+    private var locationHeads = IntArray(INITIAL_CAPACITY) { -1 }
+
+    fun kindOf(entry: Int) = entryKinds[entry]
+    fun nameOf(entry: Int) = entryNames[entry]!!
+    fun ownerOf(entry: Int) = entryOwners[entry]
+    fun descOf(entry: Int) = entryDescs[entry]
+
+    fun entry(kind: Int, name: String, owner: String?, desc: String?): Int {
+        val mask = entryHashTable.size - 1
+        var slot = hashEntry(kind, name, owner, desc) and mask
+        while (true) {
+            val entry = entryHashTable[slot] - 1
+            if (entry < 0) break
+            if (entryKinds[entry] == kind && entryNames[entry] == name && entryOwners[entry] == owner && entryDescs[entry] == desc) {
+                return entry
+            }
+            slot = (slot + 1) and mask
+        }
+        if (entryCount == entryKinds.size) {
+            growEntries()
+            return entry(kind, name, owner, desc)
+        }
+        val entry = entryCount++
+        entryKinds[entry] = kind
+        entryNames[entry] = name.intern()
+        entryOwners[entry] = owner?.intern()
+        entryDescs[entry] = desc?.intern()
+        entryHashTable[slot] = entry + 1
+        return entry
+    }
+
+    private fun hashEntry(kind: Int, name: String, owner: String?, desc: String?): Int {
+        var hash = kind
+        hash = 31 * hash + name.hashCode()
+        hash = 31 * hash + (owner?.hashCode() ?: 0)
+        hash = 31 * hash + (desc?.hashCode() ?: 0)
+        return hash xor (hash ushr 16)
+    }
+
+    private fun growEntries() {
+        val capacity = entryKinds.size * 2
+        entryKinds = entryKinds.copyOf(capacity)
+        entryNames = entryNames.copyOf(capacity)
+        entryOwners = entryOwners.copyOf(capacity)
+        entryDescs = entryDescs.copyOf(capacity)
+        entryHashTable = IntArray(capacity * 2)
+        val mask = entryHashTable.size - 1
+        for (entry in 0 until entryCount) {
+            var slot = hashEntry(entryKinds[entry], entryNames[entry]!!, entryOwners[entry], entryDescs[entry]) and mask
+            while (entryHashTable[slot] != 0) {
+                slot = (slot + 1) and mask
+            }
+            entryHashTable[slot] = entry + 1
+        }
+    }
+
+    fun add(entry: Int, location: Int, count: Int) {
+        val slot = recordSlot(entry, location)
+        val record = recordHashTable[slot] - 1
+        if (record >= 0) {
+            recordCounts[record] += count
+            return
+        }
+        if (recordCount == recordEntries.size) {
+            growRecords()
+            add(entry, location, count)
+            return
+        }
+        if (location >= locationHeads.size) {
+            val oldSize = locationHeads.size
+            locationHeads = locationHeads.copyOf(maxOf(oldSize * 2, location + 1))
+            locationHeads.fill(-1, oldSize, locationHeads.size)
+        }
+        val newRecord = recordCount++
+        recordEntries[newRecord] = entry
+        recordLocations[newRecord] = location
+        recordCounts[newRecord] = count
+        recordNextInLocation[newRecord] = locationHeads[location]
+        locationHeads[location] = newRecord
+        recordHashTable[slot] = newRecord + 1
+    }
+
+    fun remove(entry: Int, location: Int): Int {
+        val record = recordHashTable[recordSlot(entry, location)] - 1
+        if (record < 0) return 0
+        val count = recordCounts[record]
+        recordCounts[record] = 0
+        return count
+    }
+
+    // Moves the counts of every entry at one location to each of the target locations, multiplied by the corresponding
+    // multiplier. Only visits the records of the source location.
+    fun moveLocation(from: Int, targets: IntArray, multipliers: IntArray) {
+        if (from >= locationHeads.size) return
+        var record = locationHeads[from]
+        while (record >= 0) {
+            val count = recordCounts[record]
+            if (count != 0) {
+                recordCounts[record] = 0
+                for (i in targets.indices) {
+                    // adding may grow the record arrays, but never moves existing records
+                    add(recordEntries[record], targets[i], count * multipliers[i])
+                }
+            }
+            record = recordNextInLocation[record]
+        }
+    }
+
+    inline fun forEachCount(action: (entry: Int, location: Int, count: Int) -> Unit) {
+        for (record in 0 until size) {
+            val count = countAt(record)
+            if (count != 0) {
+                action(entryAt(record), locationAt(record), count)
+            }
+        }
+    }
+
+    @PublishedApi
+    internal val size
+        get() = recordCount
+
+    @PublishedApi
+    internal fun countAt(record: Int) = recordCounts[record]
+
+    @PublishedApi
+    internal fun entryAt(record: Int) = recordEntries[record]
+
+    @PublishedApi
+    internal fun locationAt(record: Int) = recordLocations[record]
+
+    private fun recordSlot(entry: Int, location: Int): Int {
+        val mask = recordHashTable.size - 1
+        var slot = (31 * entry + location).let { it xor (it ushr 16) } and mask
+        while (true) {
+            val record = recordHashTable[slot] - 1
+            if (record < 0 || (recordEntries[record] == entry && recordLocations[record] == location)) return slot
+            slot = (slot + 1) and mask
+        }
+    }
+
+    private fun growRecords() {
+        val capacity = recordEntries.size * 2
+        recordEntries = recordEntries.copyOf(capacity)
+        recordLocations = recordLocations.copyOf(capacity)
+        recordCounts = recordCounts.copyOf(capacity)
+        recordNextInLocation = recordNextInLocation.copyOf(capacity)
+        recordHashTable = IntArray(capacity * 2)
+        for (record in 0 until recordCount) {
+            recordHashTable[recordSlot(recordEntries[record], recordLocations[record])] = record + 1
+        }
+    }
+
+    companion object {
+        private const val INITIAL_CAPACITY = 32
+
+        const val FLAG_WRITE = 0x10
+        const val FLAG_DELEGATE = 0x20
+        const val KIND_ACCESSOR_CALL = 0x40
+        const val TYPE_MASK = 0x0f
+    }
+}
@@ -0,0 +1,290 @@
+package net.earthcomputer.classfileindexer
+
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.vfs.VfsUtilCore
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.openapi.vfs.VirtualFileManager
+import com.intellij.openapi.vfs.newvfs.ArchiveFileSystem
+import com.intellij.psi.search.GlobalSearchScope
+import com.intellij.psi.search.SearchScope
+import com.intellij.util.io.DataInputOutputUtil
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLongArray
+
+// A Bloom filter per library root (jar) of the names indexed from it, and one per output root (the directory a class file's
+// package path starts in) for class files outside of archives. The filters are built by the indexer alongside
+// ClassFileIndexExtension. Bits are never removed, so files which are reindexed or deleted only make a filter answer
+// "maybe" more often.
+//
+// The filters are only complete if every file in the index went through the indexer since they were last cleared, which
+// isn't the case after the IDE exits without saving them. So they are only saved when the index is disposed, the saved
+// state is removed once it has been loaded, and it carries the index version. Until the filters are known to be complete,
+// either because the index was just created or cleared or because a matching saved state was loaded, they answer "maybe"
+// for every name, which is counted as ROOT_FILTER_BYPASSES. An existing index opened without a saved state would leave
+// them incomplete until the index is rebuilt for another reason, so the index asks for a rebuild instead, see open.
+//
+// The inverted index already only returns files that contain a name, so the filters are not used to filter files but to
+// skip index lookups altogether: when a scope doesn't search libraries and the name only appears in jars, or when the name
+// appears in no jar of the scope, the lookup (and the delegate resolution after it) is not needed. Only the jars in the
+// scope are asked, as each filter answers "maybe" for a small share of the names it doesn't contain, and hundreds of jars
+// together would answer "maybe" for almost every name.
+class LibraryRootFilters(private val path: Path, private val indexVersion: Int) {
+    private val rootFilters = ConcurrentHashMap<String, BloomFilter>()
+    private val outputFilters = ConcurrentHashMap<String, BloomFilter>()
+    // the roots of the root filters, resolved from their urls when needed
+    private val roots = ConcurrentHashMap<String, VirtualFile>()
+
+    @Volatile
+    private var complete = false
+
+    fun add(file: VirtualFile, className: String, names: Collection<String>) {
+        val filter = if (file.fileSystem is ArchiveFileSystem) {
+            val root = VfsUtilCore.getRootFile(file)
+            roots.putIfAbsent(root.url, root)
+            rootFilters.computeIfAbsent(root.url) { BloomFilter() }
+        } else {
+            outputFilters.computeIfAbsent(outputRoot(file, className).url) { BloomFilter() }
+        }
+        for (name in names) {
+            filter.add(name)
+        }
+    }
+
+    // Returns false only if no file in the scope can possibly contain the name
+    fun mayContain(name: String, scope: SearchScope): Boolean {
+        if (!complete) {
+            PluginMetrics.increment(PluginMetrics.Counter.ROOT_FILTER_BYPASSES)
+            return true
+        }
+        if (outputFilters.values.any { it.mightContain(name) }) {
+            return true
+        }
+        if (scope is GlobalSearchScope && !scope.isSearchInLibraries) {
+            return false
+        }
+        return rootFilters.entries.any { (url, filter) ->
+            filter.mightContain(name) && rootFile(url)?.let { scope.contains(it) } == true
+        }
+    }
+
+    // A root which no longer exists can't be in any scope
+    private fun rootFile(url: String): VirtualFile? {
+        roots[url]?.let { if (it.isValid) return it }
+        val root = VirtualFileManager.getInstance().findFileByUrl(url) ?: return null
+        roots[url] = root
+        return root
+    }
+
+    fun clear() {
+        rootFilters.clear()
+        outputFilters.clear()
+        roots.clear()
+        complete = true
+    }
+
+    // Called before the index is opened. A new index starts out with complete, empty filters. Returns whether the filters
+    // are complete, otherwise they only become complete once the index is rebuilt.
+    fun open(isNewIndex: Boolean): Boolean {
+        if (isNewIndex) {
+            complete = true
+        } else {
+            load()
+        }
+        return complete
+    }
+
+    fun save() {
+        if (!complete) {
+            return
+        }
+        try {
+            Files.createDirectories(path.parent)
+            DataOutputStream(Files.newOutputStream(path).buffered()).use { output ->
+                output.writeByte(FORMAT_VERSION)
+                DataInputOutputUtil.writeINT(output, indexVersion)
+                writeFilters(output, rootFilters)
+                writeFilters(output, outputFilters)
+            }
+        } catch (e: IOException) {
+            LOGGER.warn("Failed to save library root filters", e)
+        }
+    }
+
+    private fun load() {
+        if (!Files.exists(path)) {
+            LOGGER.info("Library root filters were not saved, they will be rebuilt with the index")
+            return
+        }
+        try {
+            DataInputStream(Files.newInputStream(path).buffered()).use { input ->
+                if (input.readUnsignedByte() != FORMAT_VERSION) throw IOException("Unknown library root filters format")
+                if (DataInputOutputUtil.readINT(input) != indexVersion) throw IOException("Library root filters of another index version")
+                readFilters(input, rootFilters)
+                readFilters(input, outputFilters)
+            }
+            complete = true
+        } catch (e: IOException) {
+            LOGGER.warn("Failed to load library root filters", e)
+            rootFilters.clear()
+            outputFilters.clear()
+        }
+        // the saved state is only valid until the index changes, and is saved again when the index is disposed
+        try {
+            Files.deleteIfExists(path)
+        } catch (e: IOException) {
+            LOGGER.warn("Failed to delete library root filters", e)
+            complete = false
+        }
+    }
+
+    private fun writeFilters(output: DataOutputStream, filters: Map<String, BloomFilter>) {
+        val entries = filters.entries.toList()
+        DataInputOutputUtil.writeINT(output, entries.size)
+        for ((root, filter) in entries) {
+            output.writeUTF(root)
+            filter.write(output)
+        }
+    }
+
+    private fun readFilters(input: DataInputStream, filters: MutableMap<String, BloomFilter>) {
+        repeat(DataInputOutputUtil.readINT(input)) {
+            val root = input.readUTF()
+            filters[root] = BloomFilter.read(input)
+        }
+    }
+
+    // The directory the package path of the class file starts in, such as a module's compiler output directory
+    private fun outputRoot(file: VirtualFile, className: String): VirtualFile {
+        var root = file.parent ?: return file
+        for (c in className) {
+            if (c == '/') {
+                root = root.parent ?: return root
+            }
+        }
+        return root
+    }
+
+    // A scalable Bloom filter: a filter is sized for the names of its root by starting small and adding a slice twice
+    // the size of the last one whenever that one is full, so small jars take little space and large ones keep a low
+    // false positive rate. A name might be contained if any slice might contain it.
+    private class BloomFilter(@Volatile private var slices: Array<Slice>) {
+        constructor() : this(arrayOf(Slice(INITIAL_SLICE_BITS)))
+
+        fun add(name: String) {
+            // names repeat across the classes of a root, and only take up space in the filter once
+            if (mightContain(name)) {
+                return
+            }
+            var slice = slices.last()
+            if (slice.size.get() >= slice.capacity) {
+                slice = grow(slice)
+            }
+            slice.add(name)
+            slice.size.incrementAndGet()
+        }
+
+        @Synchronized
+        private fun grow(full: Slice): Slice {
+            val last = slices.last()
+            if (last !== full) {
+                return last
+            }
+            val next = Slice(minOf(full.bitCount * 2, MAX_SLICE_BITS))
+            slices += next
+            return next
+        }
+
+        fun mightContain(name: String): Boolean {
+            return slices.any { it.mightContain(name) }
+        }
+
+        fun write(output: DataOutputStream) {
+            val slices = slices
+            DataInputOutputUtil.writeINT(output, slices.size)
+            for (slice in slices) {
+                slice.write(output)
+            }
+        }
+
+        companion object {
+            fun read(input: DataInputStream): BloomFilter {
+                val sliceCount = DataInputOutputUtil.readINT(input)
+                if (sliceCount == 0) throw IOException("Empty library root filter")
+                return BloomFilter(Array(sliceCount) { Slice.read(input) })
+            }
+        }
+    }
+
+    private class Slice(val bitCount: Int) {
+        private val bits = AtomicLongArray(bitCount / 64)
+        val capacity = bitCount / BITS_PER_NAME
+        val size = AtomicInteger()
+
+        fun add(name: String) {
+            forEachBit(name) { bit ->
+                val word = bit ushr 6
+                val mask = 1L shl bit
+                while (true) {
+                    val old = bits.get(word)
+                    if ((old and mask) != 0L || bits.compareAndSet(word, old, old or mask)) break
+                }
+            }
+        }
+
+        fun mightContain(name: String): Boolean {
+            forEachBit(name) { bit ->
+                if ((bits.get(bit ushr 6) and (1L shl bit)) == 0L) return false
+            }
+            return true
+        }
+
+        // double hashing, the second hash is a mix of the first so that it doesn't need another pass over the name
+        private inline fun forEachBit(name: String, action: (Int) -> Unit) {
+            val hash1 = name.hashCode()
+            var hash2 = hash1 * -0x61c88647
+            hash2 = hash2 xor (hash2 ushr 16)
+            for (i in 0 until HASH_COUNT) {
+                action((hash1 + i * hash2) and (bitCount - 1))
+            }
+        }
+
+        fun write(output: DataOutputStream) {
+            DataInputOutputUtil.writeINT(output, bitCount)
+            DataInputOutputUtil.writeINT(output, size.get())
+            for (i in 0 until bits.length()) {
+                output.writeLong(bits.get(i))
+            }
+        }
+
+        companion object {
+            fun read(input: DataInputStream): Slice {
+                val bitCount = DataInputOutputUtil.readINT(input)
+                if (bitCount < INITIAL_SLICE_BITS || bitCount > MAX_SLICE_BITS || Integer.bitCount(bitCount) != 1) {
+                    throw IOException("Invalid library root filter size $bitCount")
+                }
+                val slice = Slice(bitCount)
+                slice.size.set(DataInputOutputUtil.readINT(input))
+                for (i in 0 until slice.bits.length()) {
+                    slice.bits.set(i, input.readLong())
+                }
+                return slice
+            }
+        }
+    }
+
+    companion object {
+        private val LOGGER = Logger.getInstance(LibraryRootFilters::class.java)
+        private const val FORMAT_VERSION = 2
+        private const val INITIAL_SLICE_BITS = 1 shl 10
+        private const val MAX_SLICE_BITS = 1 shl 20
+        // with 3 hashes, about a 2% false positive rate per full slice
+        private const val BITS_PER_NAME = 10
+        private const val HASH_COUNT = 3
+    }
+}
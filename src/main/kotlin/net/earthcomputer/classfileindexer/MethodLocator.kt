@@ -14,16 +14,14 @@ import com.intellij.psi.util.MethodSignatureUtil
 class MethodLocator(
     private val methodPtr: SmartPsiElementPointer<PsiMethod>,
     private val strict: Boolean,
-    className: String,
-    location: String,
-    index: Int
-) : DecompiledSourceElementLocator<PsiElement>(className, location, index) {
+    className: String
+) : DecompiledSourceElementLocator<PsiElement>(className) {
     private var method: PsiMethod? = null
 
-    override fun findElement(clazz: PsiClass): PsiElement? {
-        method = methodPtr.element ?: return null
+    override fun walk(clazz: PsiClass) {
+        method = methodPtr.element ?: return
         try {
-            return super.findElement(clazz)
+            super.walk(clazz)
         } finally {
             method = null
         }
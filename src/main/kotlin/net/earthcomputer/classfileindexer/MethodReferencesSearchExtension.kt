@@ -2,24 +2,52 @@ package net.earthcomputer.classfileindexer
 
 import com.intellij.psi.PsiCompiledFile
 import com.intellij.psi.PsiElement
+import com.intellij.psi.PsiMethod
 import com.intellij.psi.PsiModifier
 import com.intellij.psi.PsiReference
 import com.intellij.psi.PsiSubstitutor
 import com.intellij.psi.SmartPointerManager
+import com.intellij.psi.SmartPsiElementPointer
 import com.intellij.psi.search.searches.ClassInheritorsSearch
 import com.intellij.psi.search.searches.MethodReferencesSearch
 import com.intellij.psi.util.MethodSignatureUtil
 import com.intellij.psi.util.TypeConversionUtil
 import com.intellij.util.Processor
 import com.intellij.util.QueryExecutor
+import java.util.concurrent.atomic.AtomicInteger
 
 class MethodReferencesSearchExtension : QueryExecutor<PsiReference, MethodReferencesSearch.SearchParameters> {
     override fun execute(
         queryParameters: MethodReferencesSearch.SearchParameters,
         consumer: Processor<in PsiReference>
     ): Boolean {
+        return SearchTrace.trace({ "MethodReferencesSearch(${queryParameters.method})" }) {
+            search(queryParameters, consumer)
+        }
+    }
+
+    private fun search(
+        queryParameters: MethodReferencesSearch.SearchParameters,
+        consumer: Processor<in PsiReference>
+    ): Boolean {
+        var result = true
+        val method = queryParameters.method
+        lateinit var methodPtr: SmartPsiElementPointer<PsiMethod>
+        val id = AtomicInteger()
+        val materializer = ConcurrentResultMaterializer<Map<String, Int>, PsiReference>(consumer) { file, occurrences, elements ->
+            val psiFile = findCompiledFileWithoutSources(queryParameters.project, file) ?: return@ConcurrentResultMaterializer
+            val locator = MethodLocator(methodPtr, queryParameters.isStrictSignatureSearch, file.nameWithoutExtension)
+            for ((location, count) in occurrences) {
+                repeat(count) { i ->
+                    elements += MethodRefElement(
+                        id.getAndIncrement(),
+                        psiFile,
+                        locator.occurrence(location, i)
+                    ).createReference(method)
+                }
+            }
+        }
         runReadActionInSmartModeWithWritePriority(queryParameters.project, { queryParameters.isQueryValid }) scope@{
-            val method = queryParameters.method
             val methodDesc = method.descriptor ?: return@scope
             val declaringClass = method.containingClass ?: return@scope
             val internalName = declaringClass.internalName ?: return@scope
@@ -28,38 +56,40 @@ class MethodReferencesSearchExtension : QueryExecutor<PsiReference, MethodRefere
             val subMethodsHide = method.hasModifierProperty(PsiModifier.STATIC)
             if (!method.isConstructor && !method.hasModifierProperty(PsiModifier.PRIVATE) && !(subMethodsHide && declaringClass.isInterface)) {
                 val classesWithHiddenMethods = mutableSetOf<String>()
-                derivedClassLoop@
-                for (derived in ClassInheritorsSearch.search(declaringClass)) {
-                    val derivedInternalName = derived.internalName ?: continue
-                    if (subMethodsHide) {
-                        var superType = derived.superClass
-                        while (superType != null) {
-                            val superInternalName = superType.internalName
-                            if (superInternalName != null) {
-                                if (classesWithHiddenMethods.contains(superInternalName)) {
-                                    classesWithHiddenMethods += derivedInternalName
-                                    continue@derivedClassLoop
-                                }
-                                if (superInternalName == internalName) {
-                                    break
+                SearchTrace.time(SearchPhase.INHERITOR_SEARCH) {
+                    derivedClassLoop@
+                    for (derived in ClassInheritorsSearch.search(declaringClass)) {
+                        val derivedInternalName = derived.internalName ?: continue
+                        if (subMethodsHide) {
+                            var superType = derived.superClass
+                            while (superType != null) {
+                                val superInternalName = superType.internalName
+                                if (superInternalName != null) {
+                                    if (classesWithHiddenMethods.contains(superInternalName)) {
+                                        classesWithHiddenMethods += derivedInternalName
+                                        continue@derivedClassLoop
+                                    }
+                                    if (superInternalName == internalName) {
+                                        break
+                                    }
                                 }
+                                superType = superType.superClass
                             }
-                            superType = superType.superClass
                         }
-                    }
-                    allowedOwners += derivedInternalName
-                    for (pair in derived.findMethodsAndTheirSubstitutorsByName(method.name, false)) {
-                        val parentSubstitutor = TypeConversionUtil.getSuperClassSubstitutor(declaringClass, derived, PsiSubstitutor.EMPTY)
-                        val parentSignature = method.getSignature(parentSubstitutor)
-                        val derivedMethod = pair.first
-                        val derivedSignature = derivedMethod.getSignature(pair.second)
-                        if (MethodSignatureUtil.isSubsignature(parentSignature, derivedSignature)) {
-                            if (subMethodsHide) {
-                                classesWithHiddenMethods += derivedInternalName
-                            } else {
-                                val derivedDesc = derivedMethod.descriptor
-                                if (derivedDesc != null) {
-                                    allowedDescs += derivedDesc
+                        allowedOwners += derivedInternalName
+                        for (pair in derived.findMethodsAndTheirSubstitutorsByName(method.name, false)) {
+                            val parentSubstitutor = TypeConversionUtil.getSuperClassSubstitutor(declaringClass, derived, PsiSubstitutor.EMPTY)
+                            val parentSignature = method.getSignature(parentSubstitutor)
+                            val derivedMethod = pair.first
+                            val derivedSignature = derivedMethod.getSignature(pair.second)
+                            if (MethodSignatureUtil.isSubsignature(parentSignature, derivedSignature)) {
+                                if (subMethodsHide) {
+                                    classesWithHiddenMethods += derivedInternalName
+                                } else {
+                                    val derivedDesc = derivedMethod.descriptor
+                                    if (derivedDesc != null) {
+                                        allowedDescs += derivedDesc
+                                    }
                                 }
                             }
                         }
@@ -71,41 +101,24 @@ class MethodReferencesSearchExtension : QueryExecutor<PsiReference, MethodRefere
             } else {
                 method.name
             }
-            val files = ClassFileIndex.search(
+            methodPtr = SmartPointerManager.createPointer(method)
+            result = ClassFileIndex.processFiles(
                 methodBinaryName,
                 { key ->
                     key is MethodIndexKey &&
                         allowedOwners.contains(key.owner) &&
                         (!queryParameters.isStrictSignatureSearch || allowedDescs.contains(key.desc))
                 },
-                queryParameters.effectiveSearchScope
+                queryParameters.effectiveSearchScope,
+                materializer::submit
             )
-            if (files.isEmpty()) {
-                return@scope
-            }
-            val methodPtr = SmartPointerManager.createPointer(method)
-            var id = 0
-            for ((file, occurrences) in files) {
-                val psiFile = findCompiledFileWithoutSources(queryParameters.project, file) ?: continue
-                for ((location, count) in occurrences) {
-                    repeat(count) { i ->
-                        consumer.process(
-                            MethodRefElement(
-                                id++,
-                                psiFile,
-                                MethodLocator(methodPtr, queryParameters.isStrictSignatureSearch, file.nameWithoutExtension, location, i)
-                            ).createReference(method)
-                        )
-                    }
-                }
-            }
         }
-        return true
+        return result && materializer.finish()
     }
 
     class MethodRefElement(
         id: Int,
         file: PsiCompiledFile,
-        locator: DecompiledSourceElementLocator<PsiElement>
-    ) : FakeDecompiledElement<PsiElement>(id, file, file, locator)
+        occurrence: DecompiledOccurrence<PsiElement>
+    ) : FakeDecompiledElement<PsiElement>(id, file, file, occurrence)
 }
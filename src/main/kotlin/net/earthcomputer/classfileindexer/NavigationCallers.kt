@@ -0,0 +1,28 @@
+package net.earthcomputer.classfileindexer
+
+// Which of the platform methods that navigate to or highlight a usage the current thread is in, innermost last. MyAgent
+// makes those methods call mark on entry and exit, so FakeDecompiledElement can tell what its text range is wanted for
+// without walking the stack on every call.
+object NavigationCallers {
+    const val NAVIGATE_TO = "navigateTo"
+    const val GET_DESCRIPTOR = "getDescriptor"
+    const val OPEN_TEXT_EDITOR = "openTextEditor"
+    const val HIGHLIGHT = "highlight"
+
+    private val callers = ThreadLocal.withInitial { ArrayList<String>() }
+
+    // called by the hooked methods with their name on entry, and with null on exit
+    @JvmStatic
+    fun mark(methodName: String?) {
+        val callers = callers.get()
+        if (methodName != null) {
+            callers.add(methodName)
+        } else if (callers.isNotEmpty()) {
+            callers.removeAt(callers.lastIndex)
+        }
+    }
+
+    // the hooked method the current thread is innermost in, and the one that called it, if any
+    fun innermost(): String? = callers.get().lastOrNull()
+    fun outer(): String? = callers.get().let { it.getOrNull(it.lastIndex - 1) }
+}
@@ -0,0 +1,147 @@
+package net.earthcomputer.classfileindexer
+
+import com.intellij.openapi.diagnostic.Logger
+import java.beans.ConstructorProperties
+import java.lang.management.ManagementFactory
+import java.util.concurrent.atomic.LongAdder
+import javax.management.JMException
+import javax.management.ObjectName
+
+// Application wide counters and histograms of what indexing and searching cost, exposed over JMX as
+// net.earthcomputer.classfileindexer:type=Metrics and written to a file by DumpMetricsAction.
+// Recording is an increment of a LongAdder, which doesn't allocate once a cell exists for the thread, so it is safe to
+// call from the indexing hot path.
+object PluginMetrics {
+    enum class Counter {
+        CLASSES_INDEXED,
+        CLASSES_FROM_CONTENT_STORE,
+        CLASSES_FROM_BUNDLES,
+        BYTES_PARSED,
+        VALUES_WRITTEN,
+        VALUE_BYTES_WRITTEN,
+        PROCESS_VALUES_CALLS,
+        DELEGATE_RESOLUTIONS,
+        LOCATOR_WALKS,
+        // library root filter checks answered "maybe" because the filters are incomplete
+        ROOT_FILTER_BYPASSES
+    }
+
+    enum class HistogramKind(val unit: String) {
+        INDEXER_VISIT("ns"),
+        VALUE_SIZE("bytes"),
+        LOCATOR_WALK("ns"),
+        SEARCH("ns")
+    }
+
+    private val LOGGER = Logger.getInstance(PluginMetrics::class.java)
+    private val OBJECT_NAME = ObjectName("net.earthcomputer.classfileindexer:type=Metrics")
+
+    private val counters = Array(Counter.values().size) { LongAdder() }
+    private val histograms = Array(HistogramKind.values().size) { Histogram() }
+
+    // called once the application starts, so the MBean is visible before anything has been recorded
+    fun registerMBean() {
+        try {
+            val server = ManagementFactory.getPlatformMBeanServer()
+            if (!server.isRegistered(OBJECT_NAME)) {
+                server.registerMBean(MXBeanImpl(), OBJECT_NAME)
+            }
+        } catch (e: JMException) {
+            LOGGER.warn("Failed to register the metrics MBean", e)
+        }
+    }
+
+    fun increment(counter: Counter) {
+        counters[counter.ordinal].increment()
+    }
+
+    fun add(counter: Counter, amount: Long) {
+        counters[counter.ordinal].add(amount)
+    }
+
+    fun record(kind: HistogramKind, value: Long) {
+        histograms[kind.ordinal].record(value)
+    }
+
+    fun counters(): Map<String, Long> = Counter.values().associate { it.name.lowercase() to counters[it.ordinal].sum() }
+
+    fun histograms(): Map<String, HistogramSnapshot> {
+        return HistogramKind.values().associate { "${it.name.lowercase()}_${it.unit}" to histograms[it.ordinal].snapshot() }
+    }
+
+    fun reset() {
+        for (counter in counters) {
+            counter.reset()
+        }
+        for (histogram in histograms) {
+            histogram.reset()
+        }
+    }
+
+    // Counts values in power of two buckets, so a percentile is known to within a factor of two
+    private class Histogram {
+        private val buckets = Array(BUCKET_COUNT) { LongAdder() }
+        private val sum = LongAdder()
+
+        fun record(value: Long) {
+            val clamped = if (value < 0) 0L else value
+            buckets[Long.SIZE_BITS - java.lang.Long.numberOfLeadingZeros(clamped)].increment()
+            sum.add(clamped)
+        }
+
+        fun snapshot(): HistogramSnapshot {
+            val counts = LongArray(BUCKET_COUNT) { buckets[it].sum() }
+            val count = counts.sum()
+            fun percentile(percentile: Int): Long {
+                if (count == 0L) return 0
+                val rank = (percentile * count + 99) / 100
+                var seen = 0L
+                for (bucket in counts.indices) {
+                    seen += counts[bucket]
+                    if (seen >= rank) return upperBound(bucket)
+                }
+                return upperBound(BUCKET_COUNT - 1)
+            }
+            val max = counts.indices.lastOrNull { counts[it] != 0L }?.let { upperBound(it) } ?: 0L
+            return HistogramSnapshot(count, sum.sum(), percentile(50), percentile(95), percentile(99), max)
+        }
+
+        fun reset() {
+            for (bucket in buckets) {
+                bucket.reset()
+            }
+            sum.reset()
+        }
+
+        // bucket i holds the values with i significant bits, which are less than 2^i
+        private fun upperBound(bucket: Int) = if (bucket == Long.SIZE_BITS - 1) Long.MAX_VALUE else (1L shl bucket) - 1
+
+        companion object {
+            // values are never negative, so they have at most 63 significant bits
+            private const val BUCKET_COUNT = Long.SIZE_BITS
+        }
+    }
+
+    // percentiles and the maximum are the upper bounds of their buckets
+    class HistogramSnapshot @ConstructorProperties("count", "sum", "p50", "p95", "p99", "max") constructor(
+        val count: Long,
+        val sum: Long,
+        val p50: Long,
+        val p95: Long,
+        val p99: Long,
+        val max: Long
+    )
+
+    @Suppress("unused") // called over JMX
+    interface MetricsMXBean {
+        fun getCounters(): Map<String, Long>
+        fun getHistograms(): Map<String, HistogramSnapshot>
+        fun reset()
+    }
+
+    private class MXBeanImpl : MetricsMXBean {
+        override fun getCounters() = counters()
+        override fun getHistograms() = histograms()
+        override fun reset() = PluginMetrics.reset()
+    }
+}
@@ -1,29 +1,33 @@
 package net.earthcomputer.classfileindexer
 
-import com.intellij.openapi.vfs.VirtualFile
 import com.intellij.psi.PsiClass
 import com.intellij.psi.PsiCompiledFile
 import com.intellij.psi.PsiElement
 import com.intellij.psi.PsiField
 import com.intellij.psi.PsiReference
 import com.intellij.psi.SmartPointerManager
+import com.intellij.psi.SmartPsiElementPointer
 import com.intellij.psi.search.SearchScope
 import com.intellij.psi.search.searches.ClassInheritorsSearch
 import com.intellij.psi.search.searches.ReferencesSearch
 import com.intellij.util.Processor
 import com.intellij.util.QueryExecutor
+import java.util.concurrent.atomic.AtomicInteger
 
 class ReferencesSearchExtension : QueryExecutor<PsiReference, ReferencesSearch.SearchParameters> {
     override fun execute(
         queryParameters: ReferencesSearch.SearchParameters,
         consumer: Processor<in PsiReference>
     ): Boolean {
-        when (val element = queryParameters.elementToSearch) {
-            is PsiField -> processField(element, queryParameters, consumer, queryParameters.effectiveSearchScope)
-            is PsiClass -> processClass(element, queryParameters, consumer, queryParameters.effectiveSearchScope)
+        return when (val element = queryParameters.elementToSearch) {
+            is PsiField -> SearchTrace.trace({ "ReferencesSearch($element)" }) {
+                processField(element, queryParameters, consumer, queryParameters.effectiveSearchScope)
+            }
+            is PsiClass -> SearchTrace.trace({ "ReferencesSearch($element)" }) {
+                processClass(element, queryParameters, consumer, queryParameters.effectiveSearchScope)
+            }
+            else -> true
         }
-
-        return true
     }
 
     private fun processField(
@@ -31,53 +35,43 @@ class ReferencesSearchExtension : QueryExecutor<PsiReference, ReferencesSearch.S
         queryParameters: ReferencesSearch.SearchParameters,
         consumer: Processor<in PsiReference>,
         scope: SearchScope
-    ) {
+    ): Boolean {
+        var result = true
+        lateinit var smartFieldPtr: SmartPsiElementPointer<PsiField>
+        val id = AtomicInteger()
+        val materializer = ConcurrentResultMaterializer<Map<BinaryIndexKey, Map<String, Int>>, PsiReference>(consumer) { file, keys, elements ->
+            val psiFile = findCompiledFileWithoutSources(queryParameters.project, file) ?: return@ConcurrentResultMaterializer
+            for ((key, occurrences) in keys) {
+                val isWrite = (key as FieldIndexKey).isWrite
+                val locator = FieldLocator(smartFieldPtr, isWrite, file.nameWithoutExtension)
+                for ((location, count) in occurrences) {
+                    repeat(count) { i ->
+                        elements += FieldRefElement(id.getAndIncrement(), psiFile, locator.occurrence(location, i), isWrite)
+                            .createReference(element)
+                    }
+                }
+            }
+        }
         runReadActionInSmartModeWithWritePriority(queryParameters.project, { queryParameters.isQueryValid }) scope@{
             val fieldName = element.name
             val declaringClass = element.containingClass ?: return@scope
             val validOwnerNames = mutableSetOf(declaringClass.internalName)
-            for (inheritor in ClassInheritorsSearch.search(declaringClass)) {
-                validOwnerNames.add(inheritor.internalName)
+            SearchTrace.time(SearchPhase.INHERITOR_SEARCH) {
+                for (inheritor in ClassInheritorsSearch.search(declaringClass)) {
+                    validOwnerNames.add(inheritor.internalName)
+                }
             }
-            val readFiles = mutableMapOf<VirtualFile, Map<String, Int>>()
-            val writeFiles = mutableMapOf<VirtualFile, Map<String, Int>>()
-            val results = ClassFileIndex.searchReturnKeys(
+            smartFieldPtr = SmartPointerManager.createPointer(element)
+            result = ClassFileIndex.processFilesReturnKeys(
                 fieldName,
                 { key ->
                     key is FieldIndexKey && validOwnerNames.contains(key.owner)
                 },
-                scope
+                scope,
+                materializer::submit
             )
-            if (results.isEmpty()) {
-                return@scope
-            }
-            for ((file, keys) in results) {
-                for ((key, value) in keys) {
-                    if ((key as FieldIndexKey).isWrite) {
-                        writeFiles[file] = value
-                    } else {
-                        readFiles[file] = value
-                    }
-                }
-            }
-            val smartFieldPtr = SmartPointerManager.createPointer(element)
-            var id = 0
-            fun processFiles(files: Map<VirtualFile, Map<String, Int>>, isWrite: Boolean) {
-                for ((file, occurrences) in files) {
-                    val psiFile = findCompiledFileWithoutSources(queryParameters.project, file) ?: continue
-                    for ((location, count) in occurrences) {
-                        repeat(count) { i ->
-                            consumer.process(
-                                FieldRefElement(id++, psiFile, FieldLocator(smartFieldPtr, isWrite, file.nameWithoutExtension, location, i), isWrite)
-                                    .createReference(element)
-                            )
-                        }
-                    }
-                }
-            }
-            processFiles(readFiles, false)
-            processFiles(writeFiles, true)
         }
+        return result && materializer.finish()
     }
 
     private fun processClass(
@@ -85,43 +79,42 @@ class ReferencesSearchExtension : QueryExecutor<PsiReference, ReferencesSearch.S
         queryParameters: ReferencesSearch.SearchParameters,
         consumer: Processor<in PsiReference>,
         scope: SearchScope
-    ) {
-        runReadActionInSmartModeWithWritePriority(queryParameters.project, { queryParameters.isQueryValid }) scope@{
-            val internalName = element.internalName ?: return@scope
-            val files = ClassFileIndex.search(internalName, ClassIndexKey.INSTANCE, scope)
-            if (files.isEmpty()) {
-                return@scope
-            }
-            var id = 0
-            for ((file, occurrences) in files) {
-                val psiFile = findCompiledFileWithoutSources(queryParameters.project, file) ?: continue
-                for ((location, count) in occurrences) {
-                    repeat(count) { i ->
-                        consumer.process(
-                            ClassRefElement(
-                                id++,
-                                psiFile,
-                                ClassLocator(internalName, file.nameWithoutExtension, location, i)
-                            ).createReference(element)
-                        )
-                    }
+    ): Boolean {
+        var result = true
+        lateinit var internalName: String
+        val id = AtomicInteger()
+        val materializer = ConcurrentResultMaterializer<Map<String, Int>, PsiReference>(consumer) { file, occurrences, elements ->
+            val psiFile = findCompiledFileWithoutSources(queryParameters.project, file) ?: return@ConcurrentResultMaterializer
+            val locator = ClassLocator(internalName, file.nameWithoutExtension)
+            for ((location, count) in occurrences) {
+                repeat(count) { i ->
+                    elements += ClassRefElement(
+                        id.getAndIncrement(),
+                        psiFile,
+                        locator.occurrence(location, i)
+                    ).createReference(element)
                 }
             }
         }
+        runReadActionInSmartModeWithWritePriority(queryParameters.project, { queryParameters.isQueryValid }) scope@{
+            internalName = element.internalName ?: return@scope
+            result = ClassFileIndex.processFiles(internalName, ClassIndexKey.INSTANCE, scope, materializer::submit)
+        }
+        return result && materializer.finish()
     }
 
     class FieldRefElement(
         id: Int,
         file: PsiCompiledFile,
-        locator: DecompiledSourceElementLocator<PsiElement>,
+        occurrence: DecompiledOccurrence<PsiElement>,
         private val myIsWrite: Boolean
-    ) : FakeDecompiledElement<PsiElement>(id, file, file, locator), PsiElement, IIsWriteOverride {
+    ) : FakeDecompiledElement<PsiElement>(id, file, file, occurrence), PsiElement, IIsWriteOverride {
         override fun isWrite() = myIsWrite
     }
 
     class ClassRefElement(
         id: Int,
         file: PsiCompiledFile,
-        locator: DecompiledSourceElementLocator<PsiElement>
-    ) : FakeDecompiledElement<PsiElement>(id, file, file, locator)
+        occurrence: DecompiledOccurrence<PsiElement>
+    ) : FakeDecompiledElement<PsiElement>(id, file, file, occurrence)
 }
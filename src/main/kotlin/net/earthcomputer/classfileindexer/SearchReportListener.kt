@@ -0,0 +1,35 @@
+package net.earthcomputer.classfileindexer
+
+import com.intellij.notification.NotificationGroupManager
+import com.intellij.notification.NotificationType
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.util.registry.Registry
+
+// Reports the phase breakdown of each search, to find out which libraries and queries are slow. Every breakdown is logged
+// at debug level. The registry keys below also log slow searches at info level, or show them as a notification.
+class SearchReportListener : SearchTraceListener {
+    override fun searchFinished(trace: SearchTrace) {
+        LOGGER.debug { trace.toString() }
+        val totalMs = trace.totalNanos / 1_000_000
+        if (exceeds(totalMs, LOG_THRESHOLD_KEY)) {
+            LOGGER.info("Slow search $trace")
+        }
+        if (exceeds(totalMs, NOTIFY_THRESHOLD_KEY)) {
+            NotificationGroupManager.getInstance().getNotificationGroup(DumpMetricsAction.NOTIFICATION_GROUP)
+                .createNotification("Slow search", trace.toString(), NotificationType.INFORMATION)
+                .notify(null)
+        }
+    }
+
+    // a negative threshold disables the report
+    private fun exceeds(totalMs: Long, key: String): Boolean {
+        val threshold = Registry.intValue(key, -1)
+        return threshold in 0..totalMs
+    }
+
+    companion object {
+        private val LOGGER = Logger.getInstance(SearchReportListener::class.java)
+        private const val LOG_THRESHOLD_KEY = "classfileindexer.search.report.log.ms"
+        private const val NOTIFY_THRESHOLD_KEY = "classfileindexer.search.report.notify.ms"
+    }
+}
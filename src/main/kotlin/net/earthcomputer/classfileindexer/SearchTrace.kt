@@ -0,0 +1,139 @@
+package net.earthcomputer.classfileindexer
+
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.util.messages.Topic
+
+// The phases a search spends its time in. Phases nest, and time is counted towards the innermost phase only, so the phase
+// times of a search add up to at most its total time. Delegate resolution runs whole searches of its own, which count
+// towards delegate resolution rather than towards their own phases.
+enum class SearchPhase(val absorbsNested: Boolean = false) {
+    INHERITOR_SEARCH,
+    INDEX_LOOKUP,
+    DELEGATE_RESOLUTION(absorbsNested = true),
+    MATERIALIZATION
+}
+
+// Events counted per search, next to the time spent in each phase
+enum class SearchCounter {
+    // index values passed to the search by processValues, each of which is decoded at least partly
+    VALUES_DECODED,
+    // locations whose references were resolved through the delegate or accessor index
+    DELEGATE_HOPS,
+    FILES_MATERIALIZED,
+    // content ids looked up to tell whether a hit is a copy of a file already reported, see ClassFileIndex.ReportedContent
+    CONTENT_LOOKUPS,
+    // times runReadActionInSmartModeWithWritePriority had to start its action again after giving way to a write action
+    READ_ACTION_RESTARTS
+}
+
+// Wall clock time per phase of a single search, as seen by the thread running it. Materialization on the worker threads of
+// ConcurrentResultMaterializer is not counted, only the time the searching thread spends waiting for and consuming it.
+// When the search finishes, the trace is published to SearchTraceListener.TOPIC.
+class SearchTrace @PublishedApi internal constructor(val query: String) {
+    private val startNanos = System.nanoTime()
+    private val phaseNanos = LongArray(SearchPhase.values().size)
+    private val counts = IntArray(SearchCounter.values().size)
+    private var currentPhase: SearchPhase? = null
+    private var phaseStart = 0L
+
+    var totalNanos = 0L
+        private set
+
+    fun phaseNanos(phase: SearchPhase) = phaseNanos[phase.ordinal]
+
+    fun count(counter: SearchCounter) = counts[counter.ordinal]
+
+    @PublishedApi
+    internal fun increment(counter: SearchCounter) {
+        counts[counter.ordinal]++
+    }
+
+    @PublishedApi
+    internal fun enter(phase: SearchPhase): SearchPhase? {
+        val outer = currentPhase
+        if (outer == phase || outer?.absorbsNested == true) {
+            return outer
+        }
+        val now = System.nanoTime()
+        if (outer != null) {
+            phaseNanos[outer.ordinal] += now - phaseStart
+        }
+        currentPhase = phase
+        phaseStart = now
+        return outer
+    }
+
+    @PublishedApi
+    internal fun exit(outer: SearchPhase?) {
+        val phase = currentPhase ?: return
+        if (phase == outer) {
+            return
+        }
+        val now = System.nanoTime()
+        phaseNanos[phase.ordinal] += now - phaseStart
+        currentPhase = outer
+        phaseStart = now
+    }
+
+    @PublishedApi
+    internal fun finish() {
+        exit(null)
+        totalNanos = System.nanoTime() - startNanos
+        PluginMetrics.record(PluginMetrics.HistogramKind.SEARCH, totalNanos)
+        ApplicationManager.getApplication()?.messageBus?.syncPublisher(SearchTraceListener.TOPIC)?.searchFinished(this)
+    }
+
+    override fun toString() = buildString {
+        append(query).append(": ").append(totalNanos / 1000).append("us")
+        for (phase in SearchPhase.values()) {
+            append(", ").append(phase.name.lowercase()).append(' ').append(phaseNanos(phase) / 1000).append("us")
+        }
+        for (counter in SearchCounter.values()) {
+            append(", ").append(counter.name.lowercase()).append(' ').append(count(counter))
+        }
+    }
+
+    companion object {
+        @PublishedApi
+        internal val CURRENT = ThreadLocal<SearchTrace>()
+
+        // Traces a search run on this thread. Searches started from within a traced search are counted as part of it.
+        inline fun <T> trace(query: () -> String, action: () -> T): T {
+            if (CURRENT.get() != null) {
+                return action()
+            }
+            val trace = SearchTrace(query())
+            CURRENT.set(trace)
+            try {
+                return action()
+            } finally {
+                CURRENT.remove()
+                trace.finish()
+            }
+        }
+
+        // Counts the time spent in the action towards the given phase of the search traced on this thread, if there is one
+        inline fun <T> time(phase: SearchPhase, action: () -> T): T {
+            val trace = CURRENT.get() ?: return action()
+            val outer = trace.enter(phase)
+            try {
+                return action()
+            } finally {
+                trace.exit(outer)
+            }
+        }
+
+        // Counts an event towards the search traced on this thread, if there is one
+        fun count(counter: SearchCounter) {
+            CURRENT.get()?.increment(counter)
+        }
+    }
+}
+
+interface SearchTraceListener {
+    fun searchFinished(trace: SearchTrace)
+
+    companion object {
+        val TOPIC = Topic(SearchTraceListener::class.java, Topic.BroadcastDirection.NONE)
+    }
+}
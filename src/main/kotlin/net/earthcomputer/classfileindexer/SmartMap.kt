@@ -123,63 +123,66 @@ class SmartMap<K : Any?, V : Any> : AbstractMutableMap<K, V>() {
         }
 
     override val entries: MutableSet<MutableMap.MutableEntry<K, V>>
-        get() = entriesCache
+        get() = entriesCache ?: EntrySet().also { entriesCache = it }
 
-    private val entriesCache by lazy {
-        object : AbstractMutableSet<MutableMap.MutableEntry<K, V>>() {
-            private inner class ArrayItr : MutableIterator<MutableMap.MutableEntry<K, V>> {
-                private var index = 0
-                private var canRemove = false
-                private var removed = false
+    // Not a lazy, which would allocate two more objects for every map, and the indexer creates a lot of small maps. A race
+    // can create two entry sets, which is harmless as they have no state of their own.
+    private var entriesCache: EntrySet? = null
 
-                override fun hasNext() = index < (value as? Array<*> ?: throw ConcurrentModificationException()).size
+    private inner class EntrySet : AbstractMutableSet<MutableMap.MutableEntry<K, V>>() {
+        private inner class ArrayItr : MutableIterator<MutableMap.MutableEntry<K, V>> {
+            private var index = 0
+            private var canRemove = false
+            private var removed = false
 
-                @Suppress("UNCHECKED_CAST")
-                override fun next(): MutableMap.MutableEntry<K, V> {
-                    val thisVal1 = value as? Array<*> ?: throw ConcurrentModificationException()
-                    if (removed) throw IllegalStateException()
-                    if (index >= thisVal1.size) throw NoSuchElementException()
-                    removed = false
-                    val ret = MutableEntry(thisVal1[index] as K, thisVal1[index + 1] as V, this@SmartMap, index)
-                    index += 2
-                    canRemove = true
-                    return ret
-                }
+            override fun hasNext() = index < (value as? Array<*> ?: throw ConcurrentModificationException()).size
 
-                @Suppress("UNCHECKED_CAST")
-                override fun remove() {
-                    if (!canRemove) throw IllegalStateException()
-                    canRemove = false
-                    removed = true
-                    val thisVal1 = value as? Array<Any?> ?: throw ConcurrentModificationException()
-                    if (index >= thisVal1.size + 2) throw ConcurrentModificationException()
-                    val newVal = thisVal1.copyOf(thisVal1.size - 2)
-                    System.arraycopy(thisVal1, index, newVal, index - 2, thisVal1.size - index)
-                    index -= 2
-                    value = newVal
-                }
+            @Suppress("UNCHECKED_CAST")
+            override fun next(): MutableMap.MutableEntry<K, V> {
+                val thisVal1 = value as? Array<*> ?: throw ConcurrentModificationException()
+                if (removed) throw IllegalStateException()
+                if (index >= thisVal1.size) throw NoSuchElementException()
+                removed = false
+                val ret = MutableEntry(thisVal1[index] as K, thisVal1[index + 1] as V, this@SmartMap, index)
+                index += 2
+                canRemove = true
+                return ret
             }
 
-            override fun add(element: MutableMap.MutableEntry<K, V>): Boolean {
-                return put(element.key, element.value) == null
+            @Suppress("UNCHECKED_CAST")
+            override fun remove() {
+                if (!canRemove) throw IllegalStateException()
+                canRemove = false
+                removed = true
+                val thisVal1 = value as? Array<Any?> ?: throw ConcurrentModificationException()
+                if (index >= thisVal1.size + 2) throw ConcurrentModificationException()
+                val newVal = thisVal1.copyOf(thisVal1.size - 2)
+                System.arraycopy(thisVal1, index, newVal, index - 2, thisVal1.size - index)
+                index -= 2
+                value = newVal
             }
+        }
 
-            @Suppress("UNCHECKED_CAST")
-            override fun iterator(): MutableIterator<MutableMap.MutableEntry<K, V>> {
-                return when (val thisVal = value) {
-                    is Array<*> -> ArrayItr()
-                    is MutableMap<*, *> -> {
-                        thisVal as MutableMap<K, V>
-                        thisVal.entries.iterator()
-                    }
-                    else -> throw AssertionError()
+        override fun add(element: MutableMap.MutableEntry<K, V>): Boolean {
+            return put(element.key, element.value) == null
+        }
+
+        @Suppress("UNCHECKED_CAST")
+        override fun iterator(): MutableIterator<MutableMap.MutableEntry<K, V>> {
+            return when (val thisVal = value) {
+                is Array<*> -> ArrayItr()
+                is MutableMap<*, *> -> {
+                    thisVal as MutableMap<K, V>
+                    thisVal.entries.iterator()
                 }
+                else -> throw AssertionError()
             }
+        }
 
-            override val size = this@SmartMap.size
+        override val size
+            get() = this@SmartMap.size
 
-            override fun contains(element: MutableMap.MutableEntry<K, V>) = containsKey(element.key)
-        }
+        override fun contains(element: MutableMap.MutableEntry<K, V>) = containsKey(element.key)
     }
 
     private class MutableEntry<K : Any?, V : Any>(
@@ -204,7 +204,11 @@ fun runReadActionInSmartModeWithWritePriority(project: Project, validityCheck: (
 
     var completed = false
     var canceledInvalid = false
+    var attempts = 0
     while (!completed) {
+        if (attempts++ != 0) {
+            SearchTrace.count(SearchCounter.READ_ACTION_RESTARTS)
+        }
         if (!hasReadAccess) {
             dumbService.waitForSmartMode()
         }
@@ -0,0 +1,169 @@
+package net.earthcomputer.classfileindexer
+
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.application.ReadAction
+import com.intellij.openapi.project.DumbService
+import com.intellij.psi.JavaPsiFacade
+import com.intellij.psi.PsiClass
+import com.intellij.psi.PsiElement
+import com.intellij.psi.PsiField
+import com.intellij.psi.PsiMethod
+import com.intellij.psi.PsiReference
+import com.intellij.psi.search.GlobalSearchScope
+import com.intellij.psi.search.searches.MethodReferencesSearch
+import com.intellij.psi.search.searches.ReferencesSearch
+import com.intellij.testFramework.builders.JavaModuleFixtureBuilder
+import com.intellij.testFramework.fixtures.JavaCodeInsightFixtureTestCase
+import com.intellij.util.Processor
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.util.Locale
+
+// Measures find usages latency of the plugin's search extensions against library jars in a heavy fixture project.
+// Run with `./gradlew perfTest`. Configured through system properties, which the perfTest task forwards from -P properties:
+//   perfTest.jars        library jars to load, separated by the path separator, such as the corpora written by
+//                        `./gradlew generateCorpus`. Defaults to a small corpus generated by CorpusGenerator.
+//   perfTest.targets     comma separated elements to search for: a class, or a class and member as `a.b.C#member`.
+//                        Defaults to the hub class of a generated corpus and its members.
+//   perfTest.warmup      unmeasured searches per target, which also build the index (default 5)
+//   perfTest.iterations  measured searches per target (default 50)
+//   perfTest.maxP95Ms    fail if the p95 latency of any target exceeds this many milliseconds
+//   perfTest.report      where to write the results as JSON
+class FindUsagesLatencyTest : JavaCodeInsightFixtureTestCase() {
+    private val traces = mutableListOf<SearchTrace>()
+
+    // searches should run like they do in the IDE, away from the dispatch thread
+    override fun runInDispatchThread() = false
+
+    override fun tuneFixture(moduleBuilder: JavaModuleFixtureBuilder<*>) {
+        super.tuneFixture(moduleBuilder)
+        for ((i, jar) in libraryJars().withIndex()) {
+            moduleBuilder.addLibraryJars("perf-$i", jar.parent.toString(), jar.fileName.toString())
+        }
+    }
+
+    private fun libraryJars(): List<Path> {
+        val jars = System.getProperty("perfTest.jars")
+        if (!jars.isNullOrBlank()) {
+            return jars.split(File.pathSeparatorChar).filter { it.isNotBlank() }.map { Paths.get(it).toAbsolutePath() }
+        }
+        val dir = Files.createTempDirectory("perfTest")
+        dir.toFile().deleteOnExit()
+        val jar = dir.resolve("corpus.jar")
+        CorpusGenerator.writeJar(CorpusSpec(DEFAULT_CLASS_COUNT), jar)
+        return listOf(jar)
+    }
+
+    fun testFindUsagesLatency() {
+        DumbService.getInstance(project).waitForSmartMode()
+        ApplicationManager.getApplication().messageBus.connect(testRootDisposable)
+            .subscribe(
+                SearchTraceListener.TOPIC,
+                object : SearchTraceListener {
+                    override fun searchFinished(trace: SearchTrace) {
+                        synchronized(traces) { traces += trace }
+                    }
+                }
+            )
+
+        val targets = System.getProperty("perfTest.targets")?.split(',')?.map { it.trim() }?.filter { it.isNotEmpty() }
+            ?: CorpusGenerator.HUB_TARGETS
+        val warmup = Integer.getInteger("perfTest.warmup", DEFAULT_WARMUP)
+        val iterations = Integer.getInteger("perfTest.iterations", DEFAULT_ITERATIONS)
+
+        val results = mutableListOf<TargetResult>()
+        for (target in targets) {
+            val element = ReadAction.compute<PsiElement, RuntimeException> { findTarget(target) }
+            var usages = 0
+            repeat(warmup) { usages = search(element) }
+            synchronized(traces) { traces.clear() }
+            repeat(iterations) { search(element) }
+            val measured = synchronized(traces) { traces.toList() }
+            assertEquals("One trace per search of $target", iterations, measured.size)
+            results += TargetResult(target, usages, measured)
+        }
+
+        val report = buildReport(results)
+        println(report)
+        System.getProperty("perfTest.report")?.let { path ->
+            val reportPath = Paths.get(path)
+            Files.createDirectories(reportPath.toAbsolutePath().parent)
+            Files.writeString(reportPath, report)
+        }
+        System.getProperty("perfTest.maxP95Ms")?.toDouble()?.let { maxP95Ms ->
+            for (result in results) {
+                val p95Ms = percentile(result.totals, 95) / 1_000_000.0
+                assertTrue("p95 of ${result.target} is ${p95Ms}ms, limit is ${maxP95Ms}ms", p95Ms <= maxP95Ms)
+            }
+        }
+    }
+
+    private fun findTarget(target: String): PsiElement {
+        val className = target.substringBefore('#')
+        val memberName = target.substringAfter('#', "")
+        val psiClass = JavaPsiFacade.getInstance(project).findClass(className, GlobalSearchScope.allScope(project))
+            ?: throw AssertionError("Class $className not found")
+        if (memberName.isEmpty()) {
+            return psiClass
+        }
+        return psiClass.findFieldByName(memberName, false)
+            ?: psiClass.findMethodsByName(memberName, false).firstOrNull()
+            ?: throw AssertionError("Member $memberName not found in $className")
+    }
+
+    // Runs a search through the plugin's extension only, so the platform's own searchers don't skew the numbers
+    private fun search(element: PsiElement): Int {
+        var usages = 0
+        val consumer = Processor<PsiReference> { usages++; true }
+        val scope = GlobalSearchScope.allScope(project)
+        if (element is PsiMethod) {
+            MethodReferencesSearchExtension().execute(MethodReferencesSearch.SearchParameters(element, scope, true), consumer)
+        } else {
+            check(element is PsiClass || element is PsiField)
+            ReferencesSearchExtension().execute(ReferencesSearch.SearchParameters(element, scope, false), consumer)
+        }
+        return usages
+    }
+
+    private class TargetResult(val target: String, val usages: Int, traces: List<SearchTrace>) {
+        val totals = traces.map { it.totalNanos }.sorted()
+        val phases = SearchPhase.values().associateWith { phase -> traces.map { it.phaseNanos(phase) }.sorted() }
+    }
+
+    private fun buildReport(results: List<TargetResult>) = buildString {
+        append("{\n  \"targets\": [\n")
+        for ((i, result) in results.withIndex()) {
+            append("    {\n")
+            append("      \"target\": \"").append(result.target).append("\",\n")
+            append("      \"usages\": ").append(result.usages).append(",\n")
+            append("      \"total\": ").append(percentilesJson(result.totals))
+            for ((phase, nanos) in result.phases) {
+                append(",\n      \"").append(phase.name.lowercase()).append("\": ").append(percentilesJson(nanos))
+            }
+            append("\n    }")
+            if (i != results.lastIndex) append(',')
+            append('\n')
+        }
+        append("  ]\n}\n")
+    }
+
+    private fun percentilesJson(sortedNanos: List<Long>): String {
+        fun ms(percentile: Int) = String.format(Locale.ROOT, "%.3f", percentile(sortedNanos, percentile) / 1_000_000.0)
+        return "{ \"p50Ms\": ${ms(50)}, \"p95Ms\": ${ms(95)}, \"p99Ms\": ${ms(99)} }"
+    }
+
+    // nearest rank percentile
+    private fun percentile(sortedNanos: List<Long>, percentile: Int): Long {
+        if (sortedNanos.isEmpty()) return 0
+        val rank = (percentile * sortedNanos.size + 99) / 100
+        return sortedNanos[(rank - 1).coerceIn(0, sortedNanos.lastIndex)]
+    }
+
+    companion object {
+        private const val DEFAULT_CLASS_COUNT = 2000
+        private const val DEFAULT_WARMUP = 5
+        private const val DEFAULT_ITERATIONS = 50
+    }
+}
@@ -0,0 +1,145 @@
+package net.earthcomputer.classfileindexer
+
+import com.intellij.util.io.DataInputOutputUtil
+import com.intellij.util.io.UnsyncByteArrayInputStream
+import com.intellij.util.io.UnsyncByteArrayOutputStream
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+
+class ClassFileIndexValueTest {
+    private val strings = InMemoryStrings()
+
+    @Test
+    fun testEmptyValue() {
+        val read = roundTrip(ClassFileIndexValue.of(emptyMap(), "a/B", null))
+        assertEquals(0, read.keyCount)
+        assertEquals(emptyMap<BinaryIndexKey, Map<String, Int>>(), read)
+        assertEquals("a/B", read.className)
+        assertNull(read.superName)
+    }
+
+    @Test
+    fun testSingleLocation() {
+        val map = mapOf<BinaryIndexKey, Map<String, Int>>(
+            FieldIndexKey("a/C", false) to mapOf("m()V:1" to 1)
+        )
+        val read = roundTrip(ClassFileIndexValue.of(map, "a/B", "java/lang/Object"))
+        assertEquals(map, read)
+        assertEquals("a/B", read.className)
+        assertEquals("java/lang/Object", read.superName)
+    }
+
+    @Test
+    fun testMultipleLocations() {
+        val map = mapOf<BinaryIndexKey, Map<String, Int>>(
+            MethodIndexKey("a/C", "(I)V") to mapOf("m()V:1" to 1, "n()V:2" to 3, "<clinit>()V:1" to 200),
+            MethodIndexKey("a/D", "(I)V") to mapOf("n()V:2" to 1),
+            FieldIndexKey("a/C", true) to mapOf("m()V:1" to 2),
+            FieldIndexKey("a/C", false) to mapOf("m()V:1" to 1, "n()V:2" to 1),
+            ClassIndexKey.INSTANCE to mapOf("n()V:2" to 1),
+            DelegateIndexKey(MethodIndexKey("a/C", "()V")) to mapOf("access\$000()V:1" to 1)
+        )
+        val read = roundTrip(ClassFileIndexValue.of(map, "a/B", "a/A"))
+        assertEquals(map, read)
+        assertEquals(mapOf("m()V:1" to 1, "n()V:2" to 3, "<clinit>()V:1" to 200), read[MethodIndexKey("a/C", "(I)V")])
+        assertNull(read[MethodIndexKey("a/C", "()V")])
+        assertNull(read[StringConstantKey.INSTANCE])
+
+        // a value which was read is written the same way again
+        assertEquals(map, roundTrip(read))
+    }
+
+    @Test
+    fun testUnknownFormatVersion() {
+        val bytes = serialize(ClassFileIndexValue.of(emptyMap(), "a/B", null))
+        bytes[0] = (ClassFileIndexValue.FORMAT_VERSION + 1).toByte()
+        assertThrowsIOException { deserialize(bytes) }
+    }
+
+    @Test
+    fun testTruncatedValue() {
+        val map = mapOf<BinaryIndexKey, Map<String, Int>>(
+            FieldIndexKey("a/C", false) to mapOf("m()V:1" to 1)
+        )
+        val bytes = serialize(ClassFileIndexValue.of(map, "a/B", null))
+        assertThrowsIOException { deserialize(bytes.copyOf(bytes.size - 1)) }
+    }
+
+    @Test
+    fun testCorruptLocation() {
+        val map = mapOf<BinaryIndexKey, Map<String, Int>>(
+            FieldIndexKey("a/C", false) to mapOf("m()V:1" to 1)
+        )
+        val bytes = serialize(ClassFileIndexValue.of(map, "a/B", null))
+        // the last byte is the only location of the only key, make it point past the end of the location table
+        bytes[bytes.size - 1] = 0x7e
+        val read = deserialize(bytes)
+        assertThrowsIOException { read.locationsAt(0) }
+    }
+
+    @Test
+    fun testOverflowingLocationDelta() {
+        // the class name and two locations of a class reference, where the delta to the second location is so large that
+        // adding it to the first one overflows
+        val stringBytes = UnsyncByteArrayOutputStream()
+        for (string in listOf("a/B", "m()V:1", "n()V:2")) {
+            strings.writeString(DataOutputStream(stringBytes), string)
+        }
+        val blockBytes = UnsyncByteArrayOutputStream()
+        val block = DataOutputStream(blockBytes)
+        DataInputOutputUtil.writeINT(block, 2)
+        ClassFileIndexValue.writeCountedDelta(block, 0, 1)
+        ClassFileIndexValue.writeCountedDelta(block, Int.MAX_VALUE, 1)
+
+        val headerBytes = UnsyncByteArrayOutputStream()
+        val header = DataOutputStream(headerBytes)
+        DataInputOutputUtil.writeINT(header, 1) // location table start
+        DataInputOutputUtil.writeINT(header, 2) // location count
+        repeat(3) { DataInputOutputUtil.writeINT(header, 1) } // string lengths, the ids are small
+        DataInputOutputUtil.writeINT(header, 0) // class name
+        DataInputOutputUtil.writeINT(header, 0) // no super name
+        DataInputOutputUtil.writeINT(header, 1) // key count
+        header.writeByte(ClassIndexKey.ID)
+        header.writeByte(0) // hash
+        DataInputOutputUtil.writeINT(header, 0) // no owner
+        DataInputOutputUtil.writeINT(header, 0) // no desc
+        DataInputOutputUtil.writeINT(header, blockBytes.size())
+
+        val valueBytes = UnsyncByteArrayOutputStream()
+        val value = DataOutputStream(valueBytes)
+        value.writeByte(ClassFileIndexValue.FORMAT_VERSION)
+        DataInputOutputUtil.writeINT(value, headerBytes.size() + stringBytes.size() + blockBytes.size())
+        headerBytes.writeTo(value)
+        stringBytes.writeTo(value)
+        blockBytes.writeTo(value)
+
+        val read = deserialize(valueBytes.toByteArray())
+        assertEquals("a/B", read.className)
+        assertThrowsIOException { read.locationsAt(0) }
+    }
+
+    private fun roundTrip(value: ClassFileIndexValue) = deserialize(serialize(value))
+
+    private fun serialize(value: ClassFileIndexValue): ByteArray {
+        val out = UnsyncByteArrayOutputStream()
+        value.write(DataOutputStream(out), strings::writeString)
+        return out.toByteArray()
+    }
+
+    private fun deserialize(bytes: ByteArray) =
+        ClassFileIndexValue.read(DataInputStream(UnsyncByteArrayInputStream(bytes)), strings::readString)
+
+    private inline fun assertThrowsIOException(action: () -> Unit) {
+        try {
+            action()
+        } catch (e: IOException) {
+            return
+        }
+        fail("Expected an IOException")
+    }
+}
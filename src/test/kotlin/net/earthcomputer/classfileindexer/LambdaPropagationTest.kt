@@ -0,0 +1,147 @@
+package net.earthcomputer.classfileindexer
+
+import net.earthcomputer.classfileindexer.libs.org.objectweb.asm.ClassReader
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assume.assumeNotNull
+import org.junit.BeforeClass
+import org.junit.ClassRule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.SplittableRandom
+import javax.tools.ToolProvider
+
+class LambdaPropagationTest {
+    @Test
+    fun testMoveLocation() {
+        val refs = ReferenceTable()
+        val a = refs.entry(MethodIndexKey.ID, "a", "p/A", "()V")
+        val b = refs.entry(FieldIndexKey.ID, "b", "p/A", null)
+        refs.add(a, 3, 2)
+        refs.add(b, 3, 1)
+        refs.add(a, 1, 1)
+        refs.moveLocation(3, intArrayOf(1, 2), intArrayOf(1, 3))
+        assertEquals(setOf(Triple(a, 1, 3), Triple(a, 2, 6), Triple(b, 1, 1), Triple(b, 2, 3)), counts(refs))
+
+        // moving a location which has already been moved, or never had references, changes nothing
+        refs.moveLocation(3, intArrayOf(1), intArrayOf(1))
+        refs.moveLocation(100, intArrayOf(1), intArrayOf(1))
+        assertEquals(4, counts(refs).size)
+    }
+
+    // Chains of moves against the per-location maps the indexer used to move references with
+    @Test
+    fun testMoveLocationMatchesMapModel() {
+        val random = SplittableRandom(0)
+        repeat(100) {
+            val refs = ReferenceTable()
+            val model = mutableMapOf<Int, MutableMap<Int, Int>>()
+            val locationCount = 2 + random.nextInt(20)
+            repeat(random.nextInt(200)) {
+                val entry = refs.entry(MethodIndexKey.ID, "m${random.nextInt(30)}", "p/A", "()V")
+                val location = random.nextInt(locationCount)
+                refs.add(entry, location, 1)
+                model.computeIfAbsent(entry) { mutableMapOf() }.merge(location, 1, Integer::sum)
+            }
+            // always move to higher locations, like lambdas being inlined into the methods they are created in
+            for (from in 0 until locationCount - 1) {
+                val targets = (from + 1 until locationCount).filter { random.nextInt(3) == 0 }.toIntArray()
+                val multipliers = IntArray(targets.size) { 1 + random.nextInt(3) }
+                refs.moveLocation(from, targets, multipliers)
+                for (locations in model.values) {
+                    val count = locations.remove(from) ?: continue
+                    for (i in targets.indices) {
+                        locations.merge(targets[i], count * multipliers[i], Integer::sum)
+                    }
+                }
+            }
+            val expected = model.flatMap { (entry, locations) -> locations.map { (location, count) -> Triple(entry, location, count) } }
+            assertEquals(expected.toSet(), counts(refs))
+        }
+    }
+
+    @Test
+    fun testNestedLambdas() {
+        val outer = index("fixture/Outer")
+        val index = outer.index
+        // the inner lambda is created once by the outer lambda, which is created once by run()
+        assertEquals(mapOf("run:()V" to 1), index["secret"]!![FieldIndexKey("fixture/Outer", false)])
+        assertEquals(mapOf("run:()V" to 1), index["println"]!![MethodIndexKey("java/io/PrintStream", "(I)V")])
+        assertEquals(mapOf("run:()V" to 2), index["run"]!![MethodIndexKey("java/lang/Runnable", "()V")])
+        // helper() is referenced twice by the outer lambda
+        assertEquals(mapOf("run:()V" to 2), index["valueOf"]!![MethodIndexKey("java/lang/Integer", "(I)Ljava/lang/Integer;")])
+
+        for (keys in index.values) {
+            for (locations in keys.values) {
+                for (location in locations.keys) {
+                    assertFalse(location, location.startsWith("lambda\$") || location.startsWith("helper:"))
+                }
+            }
+        }
+    }
+
+    @Test
+    fun testMethodTypeConstants() {
+        // the method types passed to the metafactory of the Supplier method references, ()Ljava/lang/Object; among them,
+        // don't count as class references
+        val index = index("fixture/Outer").index
+        val objectRefs = index["java/lang/Object"]?.get(ClassIndexKey.INSTANCE) ?: emptyMap()
+        assertFalse(objectRefs.toString(), "run:()V" in objectRefs)
+    }
+
+    @Test
+    fun testAccessorChain() {
+        val outer = index("fixture/Outer")
+        assertEquals(
+            mapOf("access\$000:(Lfixture/Outer;)I" to 1),
+            outer.index["secret"]!![DelegateIndexKey(FieldIndexKey("fixture/Outer", false))]
+        )
+
+        val inner = index("fixture/Outer\$Inner")
+        // the accessor is called from the lambda in use(), and the call site moves with the rest of the lambda
+        assertEquals(
+            mapOf("use:()V" to 1),
+            inner.accessorCallSites[AccessorIndexExtension.key("fixture/Outer", "access\$000:(Lfixture/Outer;)I")]
+        )
+        assertEquals(
+            mapOf("reset:()V" to 1),
+            inner.accessorCallSites[AccessorIndexExtension.key("fixture/Outer", "access\$002:(Lfixture/Outer;I)I")]
+        )
+        assertEquals(mapOf("use:()V" to 1), inner.index["access\$000"]!![MethodIndexKey("fixture/Outer", "(Lfixture/Outer;)I")])
+    }
+
+    private fun counts(refs: ReferenceTable): Set<Triple<Int, Int, Int>> {
+        val result = mutableSetOf<Triple<Int, Int, Int>>()
+        refs.forEachCount { entry, location, count -> result += Triple(entry, location, count) }
+        return result
+    }
+
+    private fun index(className: String): IndexerClassVisitor {
+        val cv = IndexerClassVisitor()
+        ClassReader(Files.readAllBytes(classesDir.resolve("$className.class"))).accept(cv, ClassReader.SKIP_FRAMES)
+        return cv
+    }
+
+    companion object {
+        private lateinit var classesDir: Path
+
+        @ClassRule
+        @JvmField
+        val temp = TemporaryFolder()
+
+        @BeforeClass
+        @JvmStatic
+        fun compileFixture() {
+            val compiler = ToolProvider.getSystemJavaCompiler()
+            assumeNotNull(compiler)
+            val dir = temp.root.toPath()
+            val source = dir.resolve("Outer.java")
+            LambdaPropagationTest::class.java.getResourceAsStream("/fixtures/Outer.java")!!.use { Files.copy(it, source) }
+            classesDir = dir.resolve("classes")
+            val result = compiler.run(null, null, null, "--release", "8", "-d", classesDir.toString(), source.toString())
+            assertEquals("fixture compilation failed", 0, result)
+        }
+    }
+}
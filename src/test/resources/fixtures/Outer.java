@@ -0,0 +1,33 @@
+package fixture;
+
+import java.util.function.Supplier;
+
+// Compiled by LambdaPropagationTest with --release 8, so that javac emits access$ methods instead of using nestmates
+public class Outer {
+    private int secret;
+
+    public void run() {
+        Runnable outer = () -> {
+            Runnable inner = () -> System.out.println(secret);
+            inner.run();
+            Supplier<Integer> a = Outer::helper;
+            Supplier<Integer> b = Outer::helper;
+        };
+        outer.run();
+    }
+
+    static Integer helper() {
+        return Integer.valueOf(1);
+    }
+
+    class Inner {
+        void use() {
+            Runnable r = () -> System.out.println(secret);
+            r.run();
+        }
+
+        void reset() {
+            secret = 0;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package net.earthcomputer.classfileindexer
+
+import com.intellij.util.io.DataInputOutputUtil
+import java.io.DataInput
+import java.io.DataOutput
+import java.io.IOException
+
+// Stands in for IndexStringEnumerator, enumerating strings in memory, so values can be serialized the same way the index
+// does without a persistent enumerator
+class InMemoryStrings {
+    private val ids = HashMap<String, Int>()
+    private val strings = mutableListOf<String>()
+
+    val size
+        get() = strings.size
+
+    fun writeString(output: DataOutput, value: String) {
+        DataInputOutputUtil.writeINT(output, ids.getOrPut(value) { strings.add(value); strings.size })
+    }
+
+    fun readString(input: DataInput): String {
+        val id = DataInputOutputUtil.readINT(input)
+        return strings.getOrNull(id - 1) ?: throw IOException("Invalid enumerated string $id")
+    }
+}